@@ -1,43 +1,162 @@
-use std::num::NonZeroU64;
+use std::fs::File;
+use std::io::{self, BufWriter, Cursor, ErrorKind, Write};
+use std::num::{NonZeroU64, NonZeroU8};
+use std::ptr;
+use std::slice;
+use std::time::{Duration, Instant};
 use jni::{
     JNIEnv,
     objects::{
+        JByteBuffer,
         JClass,
         JPrimitiveArray,
+        JString,
     },
     sys::{
         jbyteArray,
         jboolean,
+        jint,
+        jlong,
     },
 };
 use zopfli::{
     self,
+    BlockType,
+    GzipEncoder,
     Options as ZopfliOptions,
     Format as ZopfliFormat,
 };
-use oxipng::{self, optimize_from_memory, Options as OxipngOptions, Options};
+use oxipng::{self, optimize_from_memory, Deflaters, Options as OxipngOptions, Options, StripChunks};
+use optivorbis::{OggToOgg, Remuxer};
 
-#[no_mangle]
-pub extern "system" fn Java_dev_rdh_imag_processors_impl_OxiPngProcessor_compress(
-    mut env: JNIEnv, _class: JClass, data: jbyteArray, alpha: jboolean
-) -> jbyteArray {
-    let array = unsafe { JPrimitiveArray::from_raw(data) };
-    let data = env.convert_byte_array(array).unwrap();
+/// Borrows the first `length` bytes of a direct buffer, without copying them.
+fn direct_slice<'a>(env: &JNIEnv, buffer: &JByteBuffer, length: jint) -> Option<&'a [u8]> {
+    let address = env.get_direct_buffer_address(buffer).ok()?;
+    let capacity = env.get_direct_buffer_capacity(buffer).ok()?;
+    if length < 0 || length as usize > capacity {
+        return None;
+    }
+    Some(unsafe { slice::from_raw_parts(address, length as usize) })
+}
+
+/// Borrows the whole of a direct buffer for writing.
+fn direct_slice_mut<'a>(env: &JNIEnv, buffer: &JByteBuffer) -> Option<&'a mut [u8]> {
+    let address = env.get_direct_buffer_address(buffer).ok()?;
+    let capacity = env.get_direct_buffer_capacity(buffer).ok()?;
+    Some(unsafe { slice::from_raw_parts_mut(address, capacity) })
+}
+
+/// Writes into a fixed-size slice, failing instead of writing partially once it is full.
+struct SliceWriter<'a> {
+    buffer: &'a mut [u8],
+    position: usize,
+    full: bool,
+}
+
+impl<'a> SliceWriter<'a> {
+    fn new(buffer: &'a mut [u8]) -> Self {
+        SliceWriter { buffer, position: 0, full: false }
+    }
+}
 
+impl<'a> Write for SliceWriter<'a> {
+    fn write(&mut self, data: &[u8]) -> io::Result<usize> {
+        let end = self.position + data.len();
+        if end > self.buffer.len() {
+            self.full = true;
+            return Err(io::Error::new(ErrorKind::WriteZero, "output buffer is full"));
+        }
+        self.buffer[self.position..end].copy_from_slice(data);
+        self.position = end;
+        Ok(data.len())
+    }
+
+    fn flush(&mut self) -> io::Result<()> {
+        Ok(())
+    }
+}
+
+fn throw_not_direct(env: &mut JNIEnv) -> jint {
+    env.throw_new("java/lang/IllegalArgumentException", "Buffers must be direct and large enough").expect("Failed to throw java exception");
+    -1
+}
+
+#[no_mangle]
+pub extern "system" fn Java_dev_rdh_imag_processors_impl_OxiPngProcessor_compressDirect(
+    mut env: JNIEnv, _class: JClass, src: JByteBuffer, length: jint, dst: JByteBuffer, alpha: jboolean, level: jint, timeout: jlong,
+) -> jint {
+    // oxipng keeps the best result it has found when the timeout runs out
     let options = OxipngOptions {
         optimize_alpha: alpha != 0,
-        ..Options::max_compression()
+        timeout: timeout_duration(timeout),
+        ..Options::from_preset(level.clamp(0, 6) as u8)
     };
 
-    let result = match optimize_from_memory(&data, &options) {
-        Ok(data) => data,
+    oxipng_direct(&mut env, &src, length, &dst, &options)
+}
+
+#[no_mangle]
+pub extern "system" fn Java_dev_rdh_imag_processors_impl_NativePngProcessor_compressDirect(
+    mut env: JNIEnv, _class: JClass, src: JByteBuffer, length: jint, dst: JByteBuffer, iterations: jint, timeout: jlong,
+) -> jint {
+    // does what pngfix and ect did: repair bad checksums, drop every metadata chunk, and recompress with zopfli
+    let options = OxipngOptions {
+        fix_errors: true,
+        strip: StripChunks::All,
+        deflate: Deflaters::Zopfli { iterations: NonZeroU8::new(iterations.clamp(1, 255) as u8).unwrap() },
+        timeout: timeout_duration(timeout),
+        ..Options::default()
+    };
+
+    oxipng_direct(&mut env, &src, length, &dst, &options)
+}
+
+/// Runs oxipng on the start of `src`, copying the result into `dst`. Returns its length, or -1 if it doesn't fit.
+fn oxipng_direct(env: &mut JNIEnv, src: &JByteBuffer, length: jint, dst: &JByteBuffer, options: &OxipngOptions) -> jint {
+    let (data, output) = match (direct_slice(env, src, length), direct_slice_mut(env, dst)) {
+        (Some(data), Some(output)) => (data, output),
+        _ => return throw_not_direct(env),
+    };
+
+    let result = match optimize_from_memory(data, options) {
+        Ok(result) => result,
         Err(_) => {
             env.throw_new("java/lang/Exception", "Failed to compress in oxipng").expect("Failed to throw java exception");
-            return env.byte_array_from_slice(&[]).unwrap().into_raw();
+            return -1;
         },
     };
 
-    return env.byte_array_from_slice(&result).unwrap().into_raw();
+    if result.len() > output.len() {
+        return -1;
+    }
+
+    unsafe { ptr::copy_nonoverlapping(result.as_ptr(), output.as_mut_ptr(), result.len()) };
+    result.len() as jint
+}
+
+#[no_mangle]
+pub extern "system" fn Java_dev_rdh_imag_processors_impl_OggProcessor_remuxDirect(
+    mut env: JNIEnv, _class: JClass, src: JByteBuffer, length: jint, dst: JByteBuffer,
+) -> jint {
+    let (data, output) = match (direct_slice(&env, &src, length), direct_slice_mut(&env, &dst)) {
+        (Some(data), Some(output)) => (data, output),
+        _ => return throw_not_direct(&mut env),
+    };
+
+    // optivorbis writes straight into the java buffer, and fails once it's full
+    let mut writer = SliceWriter::new(output);
+    let result = OggToOgg::new_with_defaults().remux(&mut Cursor::new(data), &mut writer).map(|_| ());
+    match result {
+        Ok(()) => writer.position as jint,
+        Err(e) => {
+            // running out of room only means the result wasn't smaller
+            if writer.full {
+                return -1;
+            }
+            env.throw_new("java/lang/Exception", format!("Failed to optimize in optivorbis: {}", e)).expect("Failed to throw java exception");
+            -1
+        },
+    }
 }
 
 #[no_mangle]
@@ -60,4 +179,156 @@ pub extern "system" fn Java_dev_rdh_imag_processors_impl_archives_GZipProcessor_
     };
 
     return env.byte_array_from_slice(&result).unwrap().into_raw();
-}
\ No newline at end of file
+}
+
+#[no_mangle]
+pub extern "system" fn Java_dev_rdh_imag_processors_impl_archives_GZipProcessor_compressDirect(
+    mut env: JNIEnv, _class: JClass, src: JByteBuffer, length: jint, dst: JByteBuffer, iterations: jint, timeout: jlong,
+) -> jint {
+    zopfli_direct(&mut env, &src, length, &dst, iterations, timeout, ZopfliFormat::Gzip)
+}
+
+#[no_mangle]
+pub extern "system" fn Java_dev_rdh_imag_processors_impl_archives_ZipProcessor_deflateDirect(
+    mut env: JNIEnv, _class: JClass, src: JByteBuffer, length: jint, dst: JByteBuffer, iterations: jint, timeout: jlong,
+) -> jint {
+    zopfli_direct(&mut env, &src, length, &dst, iterations, timeout, ZopfliFormat::Deflate)
+}
+
+/// Compresses the start of `src` into `dst` with zopfli, returning the length of the result, or -1 if it doesn't fit.
+fn zopfli_direct(
+    env: &mut JNIEnv, src: &JByteBuffer, length: jint, dst: &JByteBuffer, iterations: jint, timeout: jlong, format: ZopfliFormat,
+) -> jint {
+    let (data, output) = match (direct_slice(env, src, length), direct_slice_mut(env, dst)) {
+        (Some(data), Some(output)) => (data, output),
+        _ => return throw_not_direct(env),
+    };
+
+    let iterations = iterations.max(1) as u64;
+    match timeout_duration(timeout) {
+        None => {
+            // zopfli writes straight into the java buffer, and fails once it's full
+            let mut writer = SliceWriter::new(output);
+            match zopfli::compress(zopfli_options(iterations), format, data, &mut writer) {
+                Ok(_) => writer.position as jint,
+                Err(_) => -1,
+            }
+        },
+        Some(timeout) => zopfli_until(data, output, iterations, format, Instant::now() + timeout),
+    }
+}
+
+/// Converts a timeout in milliseconds from java, where 0 or less means there is none.
+fn timeout_duration(millis: jlong) -> Option<Duration> {
+    if millis > 0 { Some(Duration::from_millis(millis as u64)) } else { None }
+}
+
+fn zopfli_options(iterations: u64) -> ZopfliOptions {
+    ZopfliOptions {
+        iteration_count: NonZeroU64::new(iterations).unwrap(),
+        ..Default::default()
+    }
+}
+
+/// Compresses `data` with more and more iterations, up to `iterations`, keeping the smallest result in `output`.
+/// Stops before a run that isn't expected to finish by `deadline`, going by how long the previous one took.
+/// Returns the length of the best result, or -1 if none fit in `output`.
+fn zopfli_until(data: &[u8], output: &mut [u8], iterations: u64, format: ZopfliFormat, deadline: Instant) -> jint {
+    let mut best: Option<usize> = None;
+    let mut attempt = Vec::with_capacity(data.len() / 2);
+    let mut count = 1;
+
+    loop {
+        let start = Instant::now();
+        attempt.clear();
+        if zopfli::compress(zopfli_options(count), format, data, &mut attempt).is_ok()
+            && attempt.len() <= output.len()
+            && best.map_or(true, |len| attempt.len() < len) {
+            output[..attempt.len()].copy_from_slice(&attempt);
+            best = Some(attempt.len());
+        }
+
+        if count >= iterations {
+            break;
+        }
+
+        // the time zopfli takes grows about linearly with the iteration count
+        let next = (count * 4).min(iterations);
+        let estimate = start.elapsed().mul_f64(next as f64 / count as f64);
+        if Instant::now() + estimate > deadline {
+            break;
+        }
+        count = next;
+    }
+
+    best.map_or(-1, |len| len as jint)
+}
+
+/// A gzip stream being written to a file by `ZopfliOutputStream`, owned by the java object through a raw pointer.
+type GzipStream = GzipEncoder<BufWriter<File>>;
+
+fn throw_io(env: &mut JNIEnv, message: &str, error: io::Error) {
+    env.throw_new("java/io/IOException", format!("{}: {}", message, error)).expect("Failed to throw java exception");
+}
+
+#[no_mangle]
+pub extern "system" fn Java_dev_rdh_imag_processors_impl_archives_ZopfliOutputStream_nativeOpen(
+    mut env: JNIEnv, _class: JClass, path: JString, iterations: jint,
+) -> jlong {
+    let path: String = match env.get_string(&path) {
+        Ok(path) => path.into(),
+        Err(_) => return 0,
+    };
+
+    let file = match File::create(&path) {
+        Ok(file) => file,
+        Err(e) => {
+            throw_io(&mut env, "Failed to open output file", e);
+            return 0;
+        },
+    };
+
+    match GzipEncoder::new(zopfli_options(iterations.max(1) as u64), BlockType::Dynamic, BufWriter::new(file)) {
+        Ok(encoder) => Box::into_raw(Box::new(encoder)) as jlong,
+        Err(e) => {
+            throw_io(&mut env, "Failed to start zopfli", e);
+            0
+        },
+    }
+}
+
+#[no_mangle]
+pub extern "system" fn Java_dev_rdh_imag_processors_impl_archives_ZopfliOutputStream_nativeWrite(
+    mut env: JNIEnv, _class: JClass, handle: jlong, data: JByteBuffer, length: jint,
+) {
+    let data = match direct_slice(&env, &data, length) {
+        Some(data) => data,
+        None => {
+            throw_not_direct(&mut env);
+            return;
+        },
+    };
+
+    let encoder = unsafe { &mut *(handle as *mut GzipStream) };
+    if let Err(e) = encoder.write_all(data) {
+        throw_io(&mut env, "Failed to compress in zopfli", e);
+    }
+}
+
+#[no_mangle]
+pub extern "system" fn Java_dev_rdh_imag_processors_impl_archives_ZopfliOutputStream_nativeFinish(
+    mut env: JNIEnv, _class: JClass, handle: jlong,
+) {
+    let encoder = unsafe { Box::from_raw(handle as *mut GzipStream) };
+    let result = encoder.finish().and_then(|mut file| file.flush());
+    if let Err(e) = result {
+        throw_io(&mut env, "Failed to finish zopfli stream", e);
+    }
+}
+
+#[no_mangle]
+pub extern "system" fn Java_dev_rdh_imag_processors_impl_archives_ZopfliOutputStream_nativeAbort(
+    _env: JNIEnv, _class: JClass, handle: jlong,
+) {
+    drop(unsafe { Box::from_raw(handle as *mut GzipStream) });
+}
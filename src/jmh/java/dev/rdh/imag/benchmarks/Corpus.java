@@ -0,0 +1,230 @@
+package dev.rdh.imag.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Generates the fixed set of inputs the benchmarks run on. Everything is seeded, so every run sees the same bytes.
+ */
+public class Corpus {
+	private Corpus() { }
+
+	/**
+	 * Generate an input by name.
+	 *
+	 * @param name one of {@code icon}, {@code texture}, {@code large} (PNGs), {@code structure} (NBT) or {@code sound} (Ogg Vorbis).
+	 * @return the contents of the file.
+	 */
+	public static byte[] generate(String name) {
+		try {
+			return switch(name) {
+				case "icon" -> png(16, 16, 4);
+				case "texture" -> png(256, 256, 16);
+				case "large" -> png(1024, 1024, 32);
+				case "structure" -> nbt(4096);
+				case "sound" -> ogg(44100 * 10 / 128);
+				default -> throw new IllegalArgumentException("Unknown input: " + name);
+			};
+		} catch(IOException e) {
+			throw new IllegalStateException("Failed to generate input " + name, e);
+		}
+	}
+
+	/**
+	 * @return the extension of the file {@link #generate(String)} makes for a name.
+	 */
+	public static String extension(String name) {
+		return switch(name) {
+			case "structure" -> "nbt";
+			case "sound" -> "ogg";
+			default -> "png";
+		};
+	}
+
+	/**
+	 * A gradient with some noise and a partly transparent corner, written by ImageIO so there is something to optimize.
+	 */
+	private static byte[] png(int width, int height, int noise) throws IOException {
+		Random random = new Random(width * 31L + height);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				int r = (x * 255 / width + random.nextInt(noise)) & 0xFF;
+				int g = (y * 255 / height + random.nextInt(noise)) & 0xFF;
+				int b = ((x + y) * 127 / (width + height)) & 0xFF;
+				int a = x < width / 4 && y < height / 4 ? 0 : 0xFF;
+				image.setRGB(x, y, a << 24 | r << 16 | g << 8 | b);
+			}
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * A gzipped structure-like NBT file: a root compound with a list of block compounds.
+	 */
+	private static byte[] nbt(int blocks) throws IOException {
+		Random random = new Random(blocks);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+			out.writeByte(10); // compound
+			name(out, "");
+
+			out.writeByte(9); // list
+			name(out, "blocks");
+			out.writeByte(10);
+			out.writeInt(blocks);
+			for(int i = 0; i < blocks; i++) {
+				out.writeByte(9);
+				name(out, "pos");
+				out.writeByte(3);
+				out.writeInt(3);
+				out.writeInt(i % 16);
+				out.writeInt(i / 256);
+				out.writeInt(i / 16 % 16);
+
+				out.writeByte(3);
+				name(out, "state");
+				out.writeInt(random.nextInt(8));
+				out.writeByte(0);
+			}
+
+			out.writeByte(3);
+			name(out, "DataVersion");
+			out.writeInt(3465);
+			out.writeByte(0);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * A mono Ogg Vorbis stream of silence, with a bare minimum setup header: one two-entry codebook, one floor 1 and one residue 1, and only short blocks.
+	 * <p>Every audio packet is the two bits that say the floor is unused, so there is no real audio to encode, but the stream is valid and has the usual shape of headers followed by many small packets.</p>
+	 */
+	private static byte[] ogg(int packets) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer id = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+		id.put((byte) 1).put("vorbis".getBytes(StandardCharsets.US_ASCII))
+				.putInt(0) // version
+				.put((byte) 1) // channels
+				.putInt(44100)
+				.putInt(0).putInt(0).putInt(0) // bitrates
+				.put((byte) (8 | 11 << 4)) // block sizes 256 and 2048
+				.put((byte) 1); // framing
+		oggPage(out, 0x02, 0, 0, new byte[][] { id.array() });
+
+		byte[] vendor = "imag benchmark".getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer comment = ByteBuffer.allocate(7 + 4 + vendor.length + 4 + 1).order(ByteOrder.LITTLE_ENDIAN);
+		comment.put((byte) 3).put("vorbis".getBytes(StandardCharsets.US_ASCII))
+				.putInt(vendor.length).put(vendor)
+				.putInt(0) // no comments
+				.put((byte) 1); // framing
+
+		BitWriter setup = new BitWriter();
+		setup.write(5, 8);
+		for(byte b : "vorbis".getBytes(StandardCharsets.US_ASCII)) setup.write(b, 8);
+		setup.write(0, 8); // 1 codebook
+		setup.write(0x564342, 24).write(1, 16).write(2, 24); // sync, dimensions, entries
+		setup.write(0, 1).write(0, 1).write(0, 5).write(0, 5).write(0, 4); // not ordered, not sparse, two entries of length 1, no lookup
+		setup.write(0, 6).write(0, 16); // 1 time domain transform
+		setup.write(0, 6).write(1, 16); // 1 floor, of type 1
+		setup.write(1, 5).write(0, 4); // 1 partition, of class 0
+		setup.write(0, 3).write(0, 2).write(0, 8); // class of dimension 1 with no subclasses and no book
+		setup.write(0, 2).write(8, 4).write(128, 8); // multiplier 1, 8 bit range, the partition's x value
+		setup.write(0, 6).write(1, 16); // 1 residue, of type 1
+		setup.write(0, 24).write(128, 24).write(31, 24).write(0, 6).write(0, 8); // begin, end, partition size 32, 1 classification, classbook 0
+		setup.write(0, 3).write(0, 1); // no cascade
+		setup.write(0, 6).write(0, 16); // 1 mapping, of type 0
+		setup.write(0, 1).write(0, 1).write(0, 2); // 1 submap, no coupling, reserved
+		setup.write(0, 8).write(0, 8).write(0, 8); // time, floor and residue of the submap
+		setup.write(0, 6).write(0, 1).write(0, 16).write(0, 16).write(0, 8); // 1 mode: short blocks, window 0, transform 0, mapping 0
+		setup.write(1, 1); // framing
+		oggPage(out, 0, 0, 1, new byte[][] { comment.array(), setup.toByteArray() });
+
+		// audio packet, mode 0 (no bits), floor unused
+		byte[] silence = { 0 };
+		int sequence = 2;
+		for(int written = 0; written < packets; sequence++) {
+			int count = Math.min(255, packets - written);
+			byte[][] page = new byte[count][];
+			Arrays.fill(page, silence);
+			written += count;
+			// the first packet only primes the overlap, every other one adds a quarter of each of two short blocks
+			oggPage(out, written == packets ? 0x04 : 0, (written - 1) * 128L, sequence, page);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Write an Ogg page holding whole packets, each shorter than 255 bytes.
+	 */
+	private static void oggPage(ByteArrayOutputStream out, int flags, long granule, int sequence, byte[][] packets) {
+		int size = 0;
+		for(byte[] packet : packets) size += packet.length;
+
+		ByteBuffer page = ByteBuffer.allocate(27 + packets.length + size).order(ByteOrder.LITTLE_ENDIAN);
+		page.put("OggS".getBytes(StandardCharsets.US_ASCII))
+				.put((byte) 0) // version
+				.put((byte) flags)
+				.putLong(granule)
+				.putInt(0x696d6167) // serial
+				.putInt(sequence)
+				.putInt(0) // checksum, filled in below
+				.put((byte) packets.length);
+		for(byte[] packet : packets) page.put((byte) packet.length);
+		for(byte[] packet : packets) page.put(packet);
+
+		int crc = 0;
+		for(byte b : page.array()) {
+			crc ^= (b & 0xFF) << 24;
+			for(int i = 0; i < 8; i++) {
+				crc = crc < 0 ? crc << 1 ^ 0x04C11DB7 : crc << 1;
+			}
+		}
+		page.putInt(22, crc);
+		out.writeBytes(page.array());
+	}
+
+	/**
+	 * Packs values least significant bit first, the way Vorbis headers are.
+	 */
+	private static final class BitWriter {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private int current = 0;
+		private int bits = 0;
+
+		BitWriter write(int value, int count) {
+			for(int i = 0; i < count; i++) {
+				current |= (value >>> i & 1) << bits;
+				if(++bits == 8) {
+					bytes.write(current);
+					current = 0;
+					bits = 0;
+				}
+			}
+			return this;
+		}
+
+		byte[] toByteArray() {
+			if(bits > 0) write(0, 8 - bits);
+			return bytes.toByteArray();
+		}
+	}
+
+	private static void name(DataOutputStream out, String name) throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+}
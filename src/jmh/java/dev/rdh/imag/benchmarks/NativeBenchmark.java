@@ -0,0 +1,61 @@
+package dev.rdh.imag.benchmarks;
+
+import dev.rdh.imag.Main;
+import dev.rdh.imag.processors.impl.archives.GZipProcessor;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the cost of crossing into the native library, separately from the compression it does.
+ * <p>The {@code byte[]} entry point copies its input into native memory and its result back into a new array, which the direct buffer entry point doesn't. The difference between {@code array} and {@code direct} on the same input is what those copies cost, and the {@code empty} input shows the fixed cost of a call.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NativeBenchmark {
+	@Param({ "empty", "structure" })
+	public String input;
+
+	private byte[] array;
+	private ByteBuffer src;
+	private ByteBuffer dst;
+
+	@Setup
+	public void setup() throws Exception {
+		// make sure the native library is loaded
+		Main.LOGGER.info("Running native benchmarks");
+
+		if(input.equals("empty")) {
+			array = new byte[0];
+		} else {
+			// the gzip entry points take uncompressed data
+			try(InputStream in = new GZIPInputStream(new ByteArrayInputStream(Corpus.generate(input)))) {
+				array = in.readAllBytes();
+			}
+		}
+
+		src = ByteBuffer.allocateDirect(array.length).put(array).flip();
+		dst = ByteBuffer.allocateDirect(array.length + 1024);
+	}
+
+	@Benchmark
+	public byte[] array() {
+		return GZipProcessor.compress(array);
+	}
+
+	@Benchmark
+	public int direct() {
+		return GZipProcessor.compressDirect(src, src.remaining(), dst, GZipProcessor.DEFAULT_EFFORT, 0);
+	}
+}
@@ -0,0 +1,37 @@
+package dev.rdh.imag.benchmarks;
+
+import dev.rdh.imag.Main;
+import dev.rdh.imag.processors.FileProcessor;
+import dev.rdh.imag.processors.impl.NbtFileProcessor;
+import dev.rdh.imag.processors.impl.archives.GZipProcessor;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Runs the NBT processor on the NBT input.
+ */
+public class NbtBenchmark extends ProcessorBenchmark {
+	@Param({ "CustomNBT" })
+	public String processor;
+
+	@Param({ "structure" })
+	public String input;
+
+	@Override
+	protected String processor() {
+		return processor;
+	}
+
+	@Override
+	protected String input() {
+		return input;
+	}
+
+	@Override
+	protected Supplier<FileProcessor> supplier(String processor) {
+		return switch(processor) {
+			case "CustomNBT" -> () -> NbtFileProcessor.newInstance(GZipProcessor.DEFAULT_EFFORT, 0, 0, Main.WORKDIR);
+			default -> throw new IllegalArgumentException("Unknown processor: " + processor);
+		};
+	}
+}
@@ -0,0 +1,35 @@
+package dev.rdh.imag.benchmarks;
+
+import dev.rdh.imag.processors.FileProcessor;
+import dev.rdh.imag.processors.impl.OggProcessor;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Runs the Ogg processor on the Ogg input.
+ */
+public class OggBenchmark extends ProcessorBenchmark {
+	@Param({ "OptiVorbis" })
+	public String processor;
+
+	@Param({ "sound" })
+	public String input;
+
+	@Override
+	protected String processor() {
+		return processor;
+	}
+
+	@Override
+	protected String input() {
+		return input;
+	}
+
+	@Override
+	protected Supplier<FileProcessor> supplier(String processor) {
+		return switch(processor) {
+			case "OptiVorbis" -> OggProcessor::newInstance;
+			default -> throw new IllegalArgumentException("Unknown processor: " + processor);
+		};
+	}
+}
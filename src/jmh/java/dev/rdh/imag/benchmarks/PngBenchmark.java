@@ -0,0 +1,48 @@
+package dev.rdh.imag.benchmarks;
+
+import dev.rdh.imag.Main;
+import dev.rdh.imag.processors.FileProcessor;
+import dev.rdh.imag.processors.impl.*;
+import dev.rdh.imag.util.BlockSizeHistory;
+import dev.rdh.imag.util.CpuBudget;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Runs each PNG processor on each PNG input.
+ */
+public class PngBenchmark extends ProcessorBenchmark {
+	@Param({ "Reencoder", "NativePNG", "ECT", "Oxipng", "PNGOUT", "pngfix" })
+	public String processor;
+
+	@Param({ "icon", "texture", "large" })
+	public String input;
+
+	/**
+	 * Picks PNGOUT's block sizes the way a run of imag would. Never saved, so benchmarks don't change it.
+	 */
+	private final BlockSizeHistory history = BlockSizeHistory.load();
+
+	@Override
+	protected String processor() {
+		return processor;
+	}
+
+	@Override
+	protected String input() {
+		return input;
+	}
+
+	@Override
+	protected Supplier<FileProcessor> supplier(String processor) {
+		return switch(processor) {
+			case "Reencoder" -> Reencoder::newInstance;
+			case "NativePNG" -> () -> NativePngProcessor.newInstance(NativePngProcessor.DEFAULT_ITERATIONS, 0);
+			case "ECT" -> () -> EctPngProcessor.newInstance(Main.WORKDIR, CpuBudget.share(1));
+			case "Oxipng" -> () -> OxiPngProcessor.newInstance(OxiPngProcessor.DEFAULT_EFFORT, 0);
+			case "PNGOUT" -> () -> PngOutProcessor.newInstance(PngOutProcessor.DEFAULT_CANDIDATES, history, Main.WORKDIR);
+			case "pngfix" -> () -> PngFixProcessor.newInstance(Main.WORKDIR);
+			default -> throw new IllegalArgumentException("Unknown processor: " + processor);
+		};
+	}
+}
@@ -0,0 +1,101 @@
+package dev.rdh.imag.benchmarks;
+
+import dev.rdh.imag.Main;
+import dev.rdh.imag.processors.FileProcessor;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Runs a processor on an input of the {@link Corpus}. Subclasses pick the processors and inputs, so that every combination has a processor that handles the input.
+ * <p>Besides the number of runs per second, the {@link Sizes} counters report the input and output bytes per second, so their ratio is the compression ratio.</p>
+ * <p>Processors backed by a binary that isn't available on this machine do nothing, and will show up as implausibly fast.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public abstract class ProcessorBenchmark {
+	private Supplier<FileProcessor> supplier;
+	private byte[] data;
+	private ByteBuffer buffer;
+	private File file;
+
+	/**
+	 * @return the name of the processor to run, from the subclass's parameter.
+	 */
+	protected abstract String processor();
+
+	/**
+	 * @return the name of the input to run it on, from the subclass's parameter.
+	 */
+	protected abstract String input();
+
+	/**
+	 * @param processor the name of a processor.
+	 * @return a supplier of new instances of it.
+	 */
+	protected abstract Supplier<FileProcessor> supplier(String processor);
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		// make sure the native library is loaded
+		Main.LOGGER.info("Running processor benchmarks");
+
+		supplier = supplier(processor());
+		String input = input();
+		data = Corpus.generate(input);
+		buffer = ByteBuffer.allocateDirect(data.length).put(data).flip();
+		file = File.createTempFile("imag-bench", '.' + Corpus.extension(input));
+		file.deleteOnExit();
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() throws Exception {
+		// file based processors work in place, so each run needs a fresh copy
+		if(!supplier.get().supportsBuffers()) {
+			Files.write(file.toPath(), data);
+		}
+	}
+
+	@Benchmark
+	public void process(Sizes sizes) throws Exception {
+		FileProcessor p = supplier.get();
+		long output;
+		if(p.supportsBuffers()) {
+			output = p.process(buffer.duplicate()).remaining();
+		} else {
+			p.process(file);
+			output = file.length();
+		}
+
+		sizes.inputBytes += data.length;
+		sizes.outputBytes += output;
+	}
+
+	/**
+	 * Bytes going in and out of the processor, reported per second alongside the throughput.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Sizes {
+		public long inputBytes;
+		public long outputBytes;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			inputBytes = 0;
+			outputBytes = 0;
+		}
+	}
+}
@@ -1,23 +1,39 @@
 package dev.rdh.imag;
 
 import dev.rdh.imag.processors.FileProcessor;
+import dev.rdh.imag.processors.Pipeline;
 import dev.rdh.imag.processors.impl.*;
+import dev.rdh.imag.processors.impl.archives.GZipProcessor;
+import dev.rdh.imag.processors.impl.archives.ZipProcessor;
 import dev.rdh.imag.util.Binary;
+import dev.rdh.imag.util.BlockSizeHistory;
+import dev.rdh.imag.util.CpuBudget;
+import dev.rdh.imag.util.Dedup;
+import dev.rdh.imag.util.DirectoryWatcher;
 import dev.rdh.imag.util.EpicLogger;
+import dev.rdh.imag.util.FileOrder;
 import dev.rdh.imag.util.FileUtils;
+import dev.rdh.imag.util.Manifest;
+import dev.rdh.imag.util.ResultCache;
 import dev.rdh.imag.util.StringUtils.Pair;
 import dev.rdh.imag.util.Versioning;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -39,6 +55,54 @@ public class Main {
 
 	public static int passes = 1;
 	public static int threads = 8;
+	public static boolean useCache = true;
+	public static FileOrder order = FileOrder.NAME;
+	public static boolean race = false;
+	public static boolean adaptive = false;
+	public static Dedup dedup = Dedup.BYTES;
+	public static boolean archives = false;
+	public static boolean incremental = false;
+	public static boolean watch = false;
+	public static int pngEffort = OxiPngProcessor.DEFAULT_EFFORT;
+	public static long pngTimeout = 0;
+	public static int pngoutCandidates = PngOutProcessor.DEFAULT_CANDIDATES;
+	public static int gzipEffort = GZipProcessor.DEFAULT_EFFORT;
+	public static long gzipTimeout = 0;
+	public static int gzipBlockSize = 0;
+	public static int zipEffort = ZipProcessor.DEFAULT_EFFORT;
+	public static long zipTimeout = 0;
+	public static int batchSize = 1;
+	public static long cacheSize = 1L << 30;
+
+	/**
+	 * Passing this as the number of passes keeps running passes until no file gets any smaller.
+	 */
+	public static final int AUTO_PASSES = Integer.MAX_VALUE;
+
+	/**
+	 * The cache of results from previous runs, or {@code null} if caching is disabled.
+	 */
+	static ResultCache cache = null;
+
+	/**
+	 * The hash and cache chain of each file that missed the cache, from before the first pass.
+	 */
+	static final Map<File, Pair<String, String>> uncached = new ConcurrentHashMap<>();
+
+	/**
+	 * Files that don't need any more passes, because their result came from the cache.
+	 */
+	static final Set<File> finished = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Files that could not be processed at all.
+	 */
+	static final Set<File> failed = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The sizes and modification times of files optimized by previous runs, or {@code null} if not running incrementally.
+	 */
+	static Manifest manifest = null;
 
 	static final Map<Pair<String, String>, Function<String, Boolean>> args = new HashMap<>();
 
@@ -58,19 +122,27 @@ public class Main {
 	static long maxReductionSize = 0;
 
 	/**
-	 * The list of processors to run.
+	 * Which PNGOUT block sizes have won on which kinds of image, saved at the end of each run.
+	 */
+	static final BlockSizeHistory pngoutHistory = BlockSizeHistory.load();
+
+	/**
+	 * The settings of the {@link #optimizer}, which the processors read once it is made.
+	 */
+	static final Optimizer.Builder settings = Optimizer.builder().pngoutHistory(pngoutHistory);
+
+	/**
+	 * The list of processors to run, changed by the arguments before the {@link #optimizer} is made.
 	 */
-	public static final List<Supplier<FileProcessor>> processors = new ArrayList<>(List.of(
-			Reencoder::newInstance,
-			EctPngProcessor::newInstance,
-			OxiPngProcessor::newInstance,
-			PngOutProcessor::newInstance,
-			PngFixProcessor::newInstance,
-			NbtFileProcessor::newInstance
-	));
+	public static final List<Supplier<FileProcessor>> processors = new ArrayList<>(Optimizer.defaultProcessors(settings, () -> Main.optimizer));
 
 	/**
-	 * The main method. Parses arguments then calls {@link #run(Queue)} a number of times.
+	 * Runs the processors on each file, with the settings from the arguments. Made once they've been parsed.
+	 */
+	static Optimizer optimizer;
+
+	/**
+	 * The main method. Parses arguments then calls {@link #run(Collection, int)} once per pass.
 	 * @param args the arguments to parse.
 	 */
 	#if DEV @SuppressWarnings("all") #endif
@@ -91,9 +163,53 @@ public class Main {
 					Usage: imag [options] <path>
 									
 					Options:
-					-p, --passes=<number>    Number of passes to run (default: 1)
+					-p, --passes=<number>    Number of passes to run (default: 1), or 'auto' to keep going
+					                         until no file gets smaller. Files stop being processed
+					                         once a pass doesn't make them smaller
 					-t, --threads=<number>   Number of images to process concurrently (default: 8)
+					--cpus=<number>          Maximum number of processes and native tasks running at once,
+					                         across all images (default: number of cores)
 					--disable=<processor>    Disable a processor
+					--order=<order>          Order to process files in: name, size, pixels or scan
+					                         (default: name). size and pixels start with the largest files,
+					                         scan starts on files while the directory is still being scanned
+					--race                   Run NativePNG (or ECT), Oxipng and PNGOUT at the same time on each
+					                         image
+					                         and keep the best result, until it stops improving
+					--adaptive               Skip processors that have rarely made files of the same type
+					                         and size any smaller so far in this run
+					--gzip-block-size=<size> Split nbt files into blocks of this size (like 512K or 4M) and
+					                         compress them in parallel, at a small cost in size (default: off)
+					--png-effort=<level>     Oxipng effort, from 0 (fastest) to 6 (smallest) (default: 6)
+					--png-timeout=<seconds>  Stop Oxipng on an image after this long and keep the best result
+					                         so far (default: no limit)
+					--nbt-effort=<number>    Zopfli iterations for nbt files (default: 1000)
+					--nbt-timeout=<seconds>  Stop Zopfli on an nbt file after this long and keep the best
+					                         result so far. Large files are split into blocks for this,
+					                         like with --gzip-block-size (default: no limit)
+					--dedup=<mode>           Optimize only one of each group of identical files and copy the
+					                         result to the rest: off, bytes or pixels, which also matches
+					                         PNGs that decode to the same pixels (default: bytes)
+					-a, --archives           Also process zip, jar and gz files, optimizing the files inside
+					                         zips and jars and recompressing them with Zopfli
+					--zip-effort=<number>    Zopfli iterations for each zip and jar entry (default: 15)
+					--zip-timeout=<seconds>  Stop Zopfli on a zip or jar entry after this long and keep the best
+					                         result so far (default: no limit)
+					--batch=<number>         Run ECT and pngfix once for up to this many images at a time,
+					                         instead of once per image. Only has an effect with
+					                         --external-tools (default: 1)
+					--pngout-candidates=<n>  Number of block sizes to try with PNGOUT, picked from the image's
+					                         size and past results, or 0 to try all 9 (default: 3)
+					--external-tools         Use the ECT and pngfix binaries instead of the built-in stage
+					                         that strips and recompresses images
+					--incremental            Only process files that are new or have changed since the last
+					                         incremental run, going by their size and modification time
+					-w, --watch              Keep running, and optimize files in the directory as soon as they
+					                         are created or modified and have stopped changing
+					--no-cache               Don't skip files that were optimized in previous runs
+					--cache-size=<size>      Keep at most this much of optimized files (like 512M or 2G) to
+					                         restore copies of them from, dropping the least recently used.
+					                         Files already optimized are still skipped (default: 1G)
 					-h, --help               Display this help message
 					-v, --version            Display the version of imag
 					-u, --update             Update imag to the latest version
@@ -117,43 +233,134 @@ public class Main {
 			if(parseArg(arg)) return;
 		}
 
+		if(watch) {
+			if(!path.isDirectory()) {
+				err("Can only watch a directory: " + path);
+				return;
+			}
+			watch(path);
+			return;
+		}
+
+		if(incremental) {
+			manifest = Manifest.load(path, settings());
+		}
+
+		// when scanning, the first pass starts on files as soon as they're found
+		boolean scanning = order == FileOrder.SCAN && !path.isFile();
 		List<File> files;
 		if(path.isFile()) {
-			files = List.of(path);
+			files = new ArrayList<>(List.of(path));
+		} else if(scanning) {
+			files = new ArrayList<>();
 		} else {
-			files = FileUtils.getFiles(path, true, true, true, false); //todo
-			files.sort(Comparator.comparing(File::getName));
+			files = FileUtils.getFiles(path, true, true, true, archives); //todo
+		}
+
+		if(manifest != null && !scanning) {
+			// only the metadata of unchanged files is looked at, they aren't read
+			int found = files.size();
+			files.removeIf(file -> !manifest.changed(file));
+			LOGGER.info(plural(found - files.size(), "file") + " unchanged since the last run");
+			if(files.isEmpty() && found > 0) {
+				log("No files changed since the last run!");
+				saveManifest(files, Map.of());
+				return;
+			}
 		}
+		order.sort(files);
 
-		if(files.isEmpty()) {
+		if(files.isEmpty() && !scanning) {
 			log("No files found!");
 			return;
 		}
 
+		if(useCache) {
+			cache = ResultCache.load(new File(MAINDIR, "cache"), cacheSize);
+		}
+
 		LOGGER.info("imag v" + Versioning.getLocalVersion());
-		LOGGER.info("Found " + plural(files.size(), "file"));
-		LOGGER.info("Initial size: " + plural(FileUtils.size(files), "byte"));
-		LOGGER.info(plural(passes, "pass") + ", " + plural(threads, "thread"));
+		LOGGER.info((passes == AUTO_PASSES ? "auto passes" : plural(passes, "pass")) + ", " + plural(threads, "thread") + ", " + plural(CpuBudget.size(), "cpu"));
 
-		long preSize = FileUtils.size(files);
 		long startTime = System.currentTimeMillis();
 
-		for(int i = 0; i < passes; i++) {
-			log("\033[1;4mStarting pass " + (i + 1) + "/" + passes + "\033[0m");
-			long passPre = FileUtils.size(files);
-			run(new ArrayDeque<>(files));
+		pool = createPool();
+		optimizer = createOptimizer();
+
+		// only one file of each group of copies is optimized, and the result is copied to the rest at the end
+		Map<File, List<File>> copies = scanning ? new ConcurrentHashMap<>() : dedup.group(files, pool);
+
+		// files drop out once a pass doesn't make them any smaller
+		long preSize = FileUtils.size(files);
+		long size = preSize;
+		List<File> remaining = new ArrayList<>(files);
+		for(int i = 0; i < passes && (i == 0 || !remaining.isEmpty()); i++) {
+			String pass = (i + 1) + (passes == AUTO_PASSES ? "" : "/" + passes);
+			log("\033[1;4mStarting pass " + pass + "\033[0m");
+
+			Map<File, Long> before = new HashMap<>();
+			if(i == 0 && scanning) {
+				// the first pass runs while the directory is being scanned
+				scan(path, files, before, copies);
+				if(files.isEmpty()) {
+					log(manifest == null ? "No files found!" : "No new or changed files found!");
+					if(manifest != null) saveManifest(files, copies);
+					pool.shutdown();
+					return;
+				}
+				preSize = size = before.values().stream().mapToLong(Long::longValue).sum();
+				remaining.addAll(files);
+				removeCopies(remaining, copies);
+			} else {
+				if(i == 0) removeCopies(remaining, copies);
+				for(File file : remaining) {
+					before.put(file, file.length());
+				}
+				run(remaining, i);
+			}
+
 			if(i == 0) {
-				processors.removeIf(Reencoder.class::isInstance);
+				LOGGER.info("Found " + plural(files.size(), "file"));
+				LOGGER.info("Initial size: " + plural(preSize, "byte"));
+				if(!copies.isEmpty()) {
+					String duplicates = "Found " + plural(files.size() - remaining.size(), "duplicate file") + " in " + plural(copies.size(), "group");
+					log(duplicates);
+					LOGGER.info(duplicates);
+				}
+			}
+
+			long saved = 0;
+			for(Iterator<File> it = remaining.iterator(); it.hasNext();) {
+				File file = it.next();
+				long diff = before.get(file) - file.length();
+				saved += diff;
+				if(diff <= 0 || finished.contains(file)) it.remove();
 			}
 
-			long passPost = FileUtils.size(files);
-			String info = "Pass " + (i + 1) + "/" + passes + ": saved " + plural(passPre - passPost, "byte") + " (" + format((passPre - passPost) / (double) passPre * 100) + "%)";
+			String info = "Pass " + pass + ": saved " + plural(saved, "byte") + " (" + format(saved / (double) size * 100) + "%), " + plural(remaining.size(), "file") + " still improving";
+			size -= saved;
 			log(info);
 			LOGGER.info(info);
 		}
 
+		if(cache != null) {
+			storeCache();
+		}
+
+		try {
+			pngoutHistory.save();
+		} catch(Exception e) {
+			LOGGER.error("Could not save PNGOUT history", e);
+		}
+
+		size -= copyResults(copies);
+
+		if(manifest != null) {
+			saveManifest(files, copies);
+		}
+
 		long endTime = System.currentTimeMillis();
-		long postSize = FileUtils.size(files);
+		long postSize = size;
 
 		long totalSavings = preSize - postSize;
 		double timeTaken = (endTime - startTime) / 1e3;
@@ -164,133 +371,427 @@ public class Main {
 				   "Saved " + plural(totalSavings, "byte") + " (" + format(percentage) + "% of " + preSize + ") - up to " + format(maxReduction) + "%\n" +
 				   "Max reduction: " + plural(maxReductionSize, "byte");
 		log(s);
+
+		String report = optimizer.stats().report();
+		log(report);
+		LOGGER.info("Processor stats:\n" + report);
+
+		pool.shutdown();
 		LOGGER.close();
 	}
 
 	/**
-	 * The thread group for all the worker threads.
+	 * Optimize files in a directory as they are created or modified, until the program is stopped.
+	 * <p>Files already in the directory are left alone. Each file gets up to {@link #passes} passes, stopping once one doesn't make it smaller.</p>
+	 * @param dir the directory to watch.
 	 */
-	static final ThreadGroup group = new ThreadGroup("imag workers");
+	static void watch(File dir) {
+		if(useCache) {
+			cache = ResultCache.load(new File(MAINDIR, "cache"), cacheSize);
+		}
+		pool = createPool();
+		optimizer = createOptimizer();
 
-	/**
-	 * Run the processors on the files in the queue.
-	 * @param queue the queue of files to process.
-	 */
-	@SuppressWarnings("ResultOfMethodCallIgnored")
-	public static void run(Queue<File> queue) {
-		for(int i = 0; i < threads; i++) {
-			final int index = i;
-			new Thread(group, () -> {
-				File tempDir = new File(WORKDIR, "worker-" + index);
-				tempDir.mkdirs();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				pngoutHistory.save();
+			} catch(Exception e) {
+				LOGGER.error("Could not save PNGOUT history", e);
+			}
+			String report = optimizer.stats().report();
+			log(report);
+			LOGGER.info("Processor stats:\n" + report);
+			LOGGER.close();
+		}));
 
-				while(true) {
-					// get the file
-					File file;
-					synchronized(queue) {
-						file = queue.poll();
-					}
-					if(file == null) break;
+		LOGGER.info("imag v" + Versioning.getLocalVersion());
+		LOGGER.info("Watching " + dir.getAbsolutePath() + ", " + plural(threads, "thread") + ", " + plural(CpuBudget.size(), "cpu"));
+		log("Watching " + dir.getAbsolutePath() + " for new and changed files, press Ctrl+C to stop");
 
-					// get starting file info
-					String name = file.getName();
+		try(DirectoryWatcher watcher = DirectoryWatcher.create(dir, FileUtils.filter(true, true, true, archives))) {
+			watcher.run(file -> submit(file, () -> {
+				for(int i = 0; i < passes; i++) {
 					long pre = file.length();
-					long start = System.currentTimeMillis();
+					process(file, i);
+					if(finished.remove(file) || failed.contains(file) || file.length() >= pre) break;
+				}
+				if(cache != null) storeCache(file);
+				// forgotten only now, so a failure isn't cached
+				failed.remove(file);
+			}));
+		} catch(Exception e) {
+			err("Failed to watch " + dir.getAbsolutePath(), e);
+		}
+	}
 
-					// copy the file to the temp directory
-					File tempFile = new File(tempDir, name);
+	/**
+	 * Record the state of every file of this run in the manifest, and save it.
+	 * @param files every file of this run.
+	 * @param copies the other files in each group of copies, keyed by the group's representative.
+	 */
+	static void saveManifest(List<File> files, Map<File, List<File>> copies) {
+		// copies share the fate of the file that was actually processed
+		for(Map.Entry<File, List<File>> group : copies.entrySet()) {
+			if(failed.contains(group.getKey())) failed.addAll(group.getValue());
+		}
+		for(File file : files) {
+			manifest.record(file, failed.contains(file) ? Manifest.State.FAILED : Manifest.State.OPTIMIZED);
+		}
 
-					try {
-						Files.copy(file.toPath(), tempFile.toPath());
-					} catch(Exception e) {
-						err("Failed to copy file: " + file.getAbsolutePath(), e);
-						tempFile.delete();
-						continue;
-					}
+		try {
+			manifest.save();
+		} catch(Exception e) {
+			err("Failed to save manifest", e);
+		}
+	}
 
-					// process the file
-					for(Supplier<FileProcessor> s : processors) {
-						FileProcessor p = s.get();
-						if(!name.endsWith(p.extension())) continue;
-						try {
-							long processorPre = tempFile.length();
-							p.process(tempFile);
-							long processorPost = tempFile.length();
-							LOGGER.info(p.name() + " on '" + tempFile.getName() + "': " + processorPre + " -> " + processorPost + " [" + sign(processorPost - processorPre) + "] (total: " + sign(processorPost - pre) + ")");
-						} catch(Exception e) {
-							err("Failed to process file: " + tempFile.getAbsolutePath(), e);
-						}
-					}
+	/**
+	 * Remove every file that is a copy of another from a list of files to process.
+	 * @param files the files to process.
+	 * @param copies the other files in each group, keyed by the group's representative.
+	 */
+	static void removeCopies(List<File> files, Map<File, List<File>> copies) {
+		for(List<File> group : copies.values()) {
+			files.removeAll(group);
+		}
+	}
 
-					// copy the temp file back to the original file if it's smaller
-					if(tempFile.length() < file.length()) {
-						try {
-							Files.copy(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
-						} catch(Exception e) {
-							err("Failed to copy file: " + tempFile.getAbsolutePath(), e);
-						}
-					}
-					tempFile.delete();
+	/**
+	 * Copy the optimized representative of each group of duplicates over the rest of the group, where it's smaller.
+	 * @param copies the other files in each group, keyed by the group's representative.
+	 * @return the number of bytes saved.
+	 */
+	static long copyResults(Map<File, List<File>> copies) {
+		long saved = 0;
+		for(Map.Entry<File, List<File>> group : copies.entrySet()) {
+			File result = group.getKey();
+			for(File copy : group.getValue()) {
+				long pre = copy.length();
+				if(result.length() >= pre) continue;
+				try {
+					Files.copy(result.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					saved += pre - copy.length();
+					LOGGER.info("Copied " + result.getName() + " to " + copy.getName() + ", saving " + plural(pre - copy.length(), "byte"));
+				} catch(Exception e) {
+					err("Failed to copy " + result.getName() + " to " + copy.getAbsolutePath(), e);
+				}
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * The pool that runs all the worker tasks. Created once the number of threads is known, and reused across passes.
+	 */
+	static ForkJoinPool pool;
 
-					// get ending file info
-					long end = System.currentTimeMillis();
-					long post = file.length();
-					double reduction = 100.0 - ((double) post / (double) pre) * 100.0;
+	/**
+	 * The directory each worker thread puts files in for processors that need them on disk.
+	 */
+	static final ThreadLocal<File> tempDir = ThreadLocal.withInitial(() -> {
+		File dir = new File(WORKDIR, Thread.currentThread().getName().replace(' ', '-'));
+		dir.mkdirs();
+		return dir;
+	});
 
-					maxReduction = Math.max(maxReduction, reduction);
-					maxReductionSize = Math.max(maxReductionSize, pre - post);
+	/**
+	 * Create the worker pool.
+	 * @return a work-stealing pool with {@link #threads} workers that runs submitted files in order.
+	 */
+	static ForkJoinPool createPool() {
+		AtomicInteger index = new AtomicInteger();
+		return new ForkJoinPool(threads, p -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			thread.setName("imag worker " + index.getAndIncrement());
+			return thread;
+		}, null, true);
+	}
 
-					double timeTaken = (end - start) / 1000.0;
+	/**
+	 * Make the optimizer with the settings from the arguments, running on the {@link #pool}.
+	 * @return the optimizer.
+	 */
+	static Optimizer createOptimizer() {
+		return settings
+				.processors(processors)
+				.passes(passes)
+				.race(race)
+				.adaptive(adaptive)
+				.executor(pool)
+				.workDir(WORKDIR)
+				.pngEffort(pngEffort)
+				.pngTimeout(pngTimeout)
+				.pngoutCandidates(pngoutCandidates)
+				.gzipEffort(gzipEffort)
+				.gzipTimeout(gzipTimeout)
+				.gzipBlockSize(gzipBlockSize)
+				.zipEffort(zipEffort)
+				.zipTimeout(zipTimeout)
+				.batchSize(batchSize)
+				.build();
+	}
 
-					LOGGER.info("Processed " + file.getName() + " in " + timeFromSecs(timeTaken) +
-								"\nSize: " + format(pre) + " -> " + format(post) + " (" + format(reduction) + "%)");
-					if(reduction < 0.0) {
-						LOGGER.warn("File size increased while processing " + file.getName() + "!");
-					}
+	/**
+	 * Run the processors on the files, returning once all of them are done.
+	 * @param files the files to process.
+	 * @param pass the index of the pass, starting at 0.
+	 */
+	public static void run(Collection<File> files, int pass) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[files.size()];
+		int i = 0;
+		for(File file : files) {
+			futures[i++] = submit(file, pass);
+		}
+		CompletableFuture.allOf(futures).join();
+	}
 
-					String message = "\nProcessed " + name + " in " + timeFromSecs(timeTaken) + "\n";
+	/**
+	 * Queue a file to be processed by the worker pool.
+	 * @param file the file to process.
+	 * @param pass the index of the pass, starting at 0.
+	 * @return a future that completes once the file is done.
+	 */
+	public static CompletableFuture<Void> submit(File file, int pass) {
+		return submit(file, () -> process(file, pass));
+	}
 
-					if(reduction > 0.0) {
-						message += "File size decreased: " + format(pre) + " -> " + plural(post, "byte") + '\n'
-								   + "Savings of " + plural(pre - post, "byte") + " (" + format(reduction) + "%)";
-					} else if(reduction < 0.0) {
-						message += "File size increased! This should not happen!";
-					} else {
-						message += "File size not changed";
-					}
+	/**
+	 * Queue some work on a file to be run by the worker pool, logging it if it fails.
+	 * @param file the file being worked on.
+	 * @param task the work to do.
+	 * @return a future that completes once the work is done.
+	 */
+	static CompletableFuture<Void> submit(File file, Runnable task) {
+		return CompletableFuture.runAsync(task, pool)
+				.exceptionally(e -> {
+					failed.add(file);
+					err("Failed to process file: " + file.getAbsolutePath(), e);
+					return null;
+				});
+	}
 
-					log(message);
+	/**
+	 * Scan a directory and run the first pass on each file as soon as it is found, returning once all of them are done.
+	 * <p>Files are deduplicated as they are found, so the first copy of each file is its group's representative.</p>
+	 * @param dir the directory to scan.
+	 * @param files filled with every file found, in the order they were found.
+	 * @param before filled with the size of each file before processing.
+	 * @param copies filled with the other files in each group of copies, keyed by the group's representative.
+	 */
+	static void scan(File dir, List<File> files, Map<File, Long> before, Map<File, List<File>> copies) {
+		Map<String, File> representatives = new ConcurrentHashMap<>();
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+		FileUtils.scan(dir, FileUtils.filter(true, true, true, archives), file -> {
+			if(manifest != null && !manifest.changed(file)) return;
+			files.add(file);
+			before.put(file, file.length());
+			futures.add(submit(file, () -> {
+				String key = dedup == Dedup.OFF ? null : dedup.key(file);
+				File representative = key == null ? null : representatives.putIfAbsent(key, file);
+				if(representative == null) {
+					process(file, 0);
+				} else {
+					copies.computeIfAbsent(representative, k -> new CopyOnWriteArrayList<>()).add(file);
 				}
-			}, "imag worker " + index)
-					.start();
+			}));
+		});
+
+		CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+	}
+
+	/**
+	 * Run the processors on a single file, replacing it if the result is smaller.
+	 * @param file the file to process.
+	 * @param pass the index of the pass, starting at 0.
+	 */
+	static void process(File file, int pass) {
+		// get starting file info
+		String name = file.getName();
+		long pre = file.length();
+		long start = System.currentTimeMillis();
+
+		// on the first pass, check if this file has been seen before
+		if(pass == 0 && checkCache(file)) {
+			finished.add(file);
+			return;
 		}
 
-		int i = 0;
-		//wait for all the threads to finish
-		while(group.activeCount() > 0) {
-			try {
-				//noinspection BusyWait
-				Thread.sleep(100);
-				i++;
-			} catch(InterruptedException e) {
-				err("Main thread interrupted while waiting for children to finish", e);
+		// load the file into memory, processors that need it on disk get a copy in the temp directory
+		try(Pipeline pipeline = Pipeline.load(file, new File(tempDir.get(), name))) {
+			// the best result so far is still kept, but the file is tried again next time
+			if(!optimize(pipeline, name, file.getAbsolutePath(), pass)) failed.add(file);
+
+			// write the result back to the original file if it's smaller
+			if(pipeline.size() < file.length()) {
+				pipeline.writeTo(file);
 			}
-			if(i == 600) {
-				// gc every minute
-				System.gc();
-				i = 0;
+		} catch(Exception e) {
+			failed.add(file);
+			err("Failed to process file: " + file.getAbsolutePath(), e);
+			return;
+		}
+
+		// get ending file info
+		long end = System.currentTimeMillis();
+		long post = file.length();
+		double reduction = recordReduction(pre, post);
+
+		double timeTaken = (end - start) / 1000.0;
+
+		LOGGER.info("Processed " + file.getName() + " in " + timeFromSecs(timeTaken) +
+					"\nSize: " + format(pre) + " -> " + format(post) + " (" + format(reduction) + "%)");
+		if(reduction < 0.0) {
+			LOGGER.warn("File size increased while processing " + file.getName() + "!");
+		}
+
+		String message = "\nProcessed " + name + " in " + timeFromSecs(timeTaken) + "\n";
+
+		if(reduction > 0.0) {
+			message += "File size decreased: " + format(pre) + " -> " + plural(post, "byte") + '\n'
+					   + "Savings of " + plural(pre - post, "byte") + " (" + format(reduction) + "%)";
+		} else if(reduction < 0.0) {
+			message += "File size increased! This should not happen!";
+		} else {
+			message += "File size not changed";
+		}
+
+		log(message);
+	}
+
+	/**
+	 * Run one pass of every processor that applies to a file on its contents, printing any that fail.
+	 * @param pipeline the pipeline holding the file's contents.
+	 * @param name the name of the file, which decides the processors that run.
+	 * @param path where the file is, for printing errors.
+	 * @param pass the index of the pass, starting at 0.
+	 * @return whether every processor succeeded.
+	 */
+	static boolean optimize(Pipeline pipeline, String name, String path, int pass) {
+		List<Optimizer.Step> errors = optimizer.run(pipeline, name, pass).errors();
+		for(Optimizer.Step step : errors) {
+			err("Failed to process file: " + path, step.error());
+		}
+		return errors.isEmpty();
+	}
+
+	/**
+	 * Look a file up in the cache, restoring the result of a previous run if there is one.
+	 * <p>On a miss, the file's hash is remembered so the final result can be stored by {@link #storeCache()} once all passes are done.</p>
+	 * @param file the file, before any processing.
+	 * @return whether the file is already done, and needs no more passes.
+	 */
+	static boolean checkCache(File file) {
+		String name = file.getName();
+		if(cache == null) return false;
+		String chain = optimizer.chain(name);
+		if(chain.isEmpty()) return false;
+
+		chain += options() + (name.endsWith(".zip") || name.endsWith(".jar") ? "~zip:" + zipEffort + ':' + zipTimeout : "");
+
+		try {
+			long pre = file.length();
+			String hash = FileUtils.hash(file);
+			if(cache.isOptimized(hash, chain)) {
+				LOGGER.info("Skipping " + name + ": already optimized");
+				log("\nSkipped " + name + ": already optimized");
+				return true;
+			}
+
+			File cached = cache.lookup(hash, chain);
+			if(cached != null && cached.length() < pre) {
+				Files.copy(cached.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				LOGGER.info("Restored " + name + " from cache: " + pre + " -> " + file.length());
+				log("\nRestored " + name + " from cache\nFile size decreased: " + format(pre) + " -> " + plural(file.length(), "byte"));
+				recordReduction(pre, file.length());
+				return true;
 			}
+
+			uncached.put(file, Pair.of(hash, chain));
+		} catch(Exception e) {
+			err("Failed to check cache for file: " + file.getAbsolutePath(), e);
+		}
+		return false;
+	}
+
+	/**
+	 * Describe the options that change what the processors do to a file.
+	 * <p>Results depend on how many passes are run, whether processors can be skipped and how hard they try, as well as on the processors.</p>
+	 * @return the options, to be appended to a processor chain.
+	 */
+	static String options() {
+		return "*" + (passes == AUTO_PASSES ? "auto" : passes) + (adaptive ? "~adaptive" : "")
+				+ "~png:" + pngEffort + ':' + pngTimeout + ':' + pngoutCandidates
+				+ "~nbt:" + gzipEffort + ':' + gzipTimeout + ':' + gzipBlockSize;
+	}
+
+	/**
+	 * Describe everything that changes what a run does to any file, to key the {@link Manifest}.
+	 * @return every processor, and the options they run with.
+	 */
+	static String settings() {
+		StringBuilder sb = new StringBuilder();
+		for(Supplier<FileProcessor> s : processors) {
+			if(!sb.isEmpty()) sb.append(',');
+			sb.append(s.get().name());
+		}
+		return sb + (race ? "~race" : "") + options() + "~zip:" + zipEffort + ':' + zipTimeout;
+	}
+
+	/**
+	 * Store the final results of the files that missed the cache.
+	 */
+	static void storeCache() {
+		for(File file : uncached.keySet()) {
+			storeCache(file);
+		}
+	}
+
+	/**
+	 * Store the final result of a file, if it missed the cache and didn't fail.
+	 * @param file the file, after all its passes.
+	 */
+	static void storeCache(File file) {
+		Pair<String, String> entry = uncached.remove(file);
+		// a failed file may not have been optimized at all, and caching it would skip it for good
+		if(entry == null || failed.contains(file)) return;
+		try {
+			cache.store(entry.first(), file, entry.second());
+		} catch(Exception e) {
+			err("Failed to cache result for file: " + file.getAbsolutePath(), e);
 		}
 	}
 
+	/**
+	 * Update the run statistics with the result of processing a file.
+	 * @param pre the size of the file before processing.
+	 * @param post the size of the file after processing.
+	 * @return the reduction in size, as a percentage.
+	 */
+	static synchronized double recordReduction(long pre, long post) {
+		double reduction = 100.0 - ((double) post / (double) pre) * 100.0;
+		maxReduction = Math.max(maxReduction, reduction);
+		maxReductionSize = Math.max(maxReductionSize, pre - post);
+		return reduction;
+	}
+
 	public static void initArgs() {
 		args.put(Pair.of("-p", "--passes"), arg -> {
+			String value = arg.substring(arg.indexOf("=") + 1);
+			if(value.equalsIgnoreCase("auto")) {
+				passes = AUTO_PASSES;
+				return false;
+			}
 			try {
-				passes = Integer.parseInt(arg.substring(arg.indexOf("=") + 1));
+				passes = Integer.parseInt(value);
 			} catch(NumberFormatException e) {
 				err("Invalid number of passes: " + arg);
 				return true;
 			}
+			if(passes < 1) {
+				err("Invalid number of passes: " + arg);
+				return true;
+			}
 			return false;
 		});
 		args.put(Pair.of("-t", "--threads"), arg -> {
@@ -302,6 +803,152 @@ public class Main {
 			}
 			return false;
 		});
+		args.put(Pair.of("--cpus", "--cpus"), arg -> {
+			try {
+				CpuBudget.setSize(Integer.parseInt(arg.substring(arg.indexOf("=") + 1)));
+			} catch(NumberFormatException e) {
+				err("Invalid number of cpus: " + arg);
+				return true;
+			}
+			return false;
+		});
+		args.put(Pair.of("--order", "--order"), arg -> {
+			FileOrder o = FileOrder.from(arg.substring(arg.indexOf("=") + 1));
+			if(o == null) {
+				err("Invalid order: " + arg);
+				return true;
+			}
+			order = o;
+			return false;
+		});
+		args.put(Pair.of("--dedup", "--dedup"), arg -> {
+			Dedup d = Dedup.from(arg.substring(arg.indexOf("=") + 1));
+			if(d == null) {
+				err("Invalid dedup mode: " + arg);
+				return true;
+			}
+			dedup = d;
+			return false;
+		});
+		args.put(Pair.of("--race", "--race"), arg -> {
+			race = true;
+			return false;
+		});
+		args.put(Pair.of("--adaptive", "--adaptive"), arg -> {
+			adaptive = true;
+			return false;
+		});
+		args.put(Pair.of("--gzip-block-size", "--gzip-block-size"), arg -> {
+			long size = parseSize(arg.substring(arg.indexOf("=") + 1));
+			if(size < 0 || size > Integer.MAX_VALUE - 1024) {
+				err("Invalid block size: " + arg);
+				return true;
+			}
+			gzipBlockSize = (int) size;
+			return false;
+		});
+		args.put(Pair.of("--png-effort", "--png-effort"), arg -> {
+			int effort = parseInt(arg.substring(arg.indexOf("=") + 1));
+			if(effort < 0 || effort > 6) {
+				err("Invalid png effort: " + arg);
+				return true;
+			}
+			pngEffort = effort;
+			return false;
+		});
+		args.put(Pair.of("--png-timeout", "--png-timeout"), arg -> {
+			int seconds = parseInt(arg.substring(arg.indexOf("=") + 1));
+			if(seconds < 0) {
+				err("Invalid png timeout: " + arg);
+				return true;
+			}
+			pngTimeout = seconds * 1000L;
+			return false;
+		});
+		args.put(Pair.of("--nbt-effort", "--nbt-effort"), arg -> {
+			int iterations = parseInt(arg.substring(arg.indexOf("=") + 1));
+			if(iterations < 1) {
+				err("Invalid nbt effort: " + arg);
+				return true;
+			}
+			gzipEffort = iterations;
+			return false;
+		});
+		args.put(Pair.of("--nbt-timeout", "--nbt-timeout"), arg -> {
+			int seconds = parseInt(arg.substring(arg.indexOf("=") + 1));
+			if(seconds < 0) {
+				err("Invalid nbt timeout: " + arg);
+				return true;
+			}
+			gzipTimeout = seconds * 1000L;
+			return false;
+		});
+		args.put(Pair.of("-a", "--archives"), arg -> {
+			archives = true;
+			return false;
+		});
+		args.put(Pair.of("--zip-effort", "--zip-effort"), arg -> {
+			int iterations = parseInt(arg.substring(arg.indexOf("=") + 1));
+			if(iterations < 1) {
+				err("Invalid zip effort: " + arg);
+				return true;
+			}
+			zipEffort = iterations;
+			return false;
+		});
+		args.put(Pair.of("--zip-timeout", "--zip-timeout"), arg -> {
+			int seconds = parseInt(arg.substring(arg.indexOf("=") + 1));
+			if(seconds < 0) {
+				err("Invalid zip timeout: " + arg);
+				return true;
+			}
+			zipTimeout = seconds * 1000L;
+			return false;
+		});
+		args.put(Pair.of("--batch", "--batch"), arg -> {
+			int size = parseInt(arg.substring(arg.indexOf("=") + 1));
+			if(size < 1) {
+				err("Invalid batch size: " + arg);
+				return true;
+			}
+			batchSize = size;
+			return false;
+		});
+		args.put(Pair.of("--pngout-candidates", "--pngout-candidates"), arg -> {
+			int count = parseInt(arg.substring(arg.indexOf("=") + 1));
+			if(count < 0) {
+				err("Invalid number of PNGOUT candidates: " + arg);
+				return true;
+			}
+			pngoutCandidates = count;
+			return false;
+		});
+		args.put(Pair.of("--external-tools", "--external-tools"), arg -> {
+			// ect takes the place of the native stage, and pngfix runs last, like before it existed
+			Optimizer.useExternalTools(processors, settings);
+			return false;
+		});
+		args.put(Pair.of("--incremental", "--incremental"), arg -> {
+			incremental = true;
+			return false;
+		});
+		args.put(Pair.of("-w", "--watch"), arg -> {
+			watch = true;
+			return false;
+		});
+		args.put(Pair.of("--no-cache", "--no-cache"), arg -> {
+			useCache = false;
+			return false;
+		});
+		args.put(Pair.of("--cache-size", "--cache-size"), arg -> {
+			long size = parseSize(arg.substring(arg.indexOf("=") + 1));
+			if(size < 0) {
+				err("Invalid cache size: " + arg);
+				return true;
+			}
+			cacheSize = size;
+			return false;
+		});
 		args.put(Pair.of("--disable", "--disable"), arg -> {
 			String[] names = arg.substring(arg.indexOf("=") + 1).split(",");
 			outer: for(String name : names) {
@@ -319,6 +966,42 @@ public class Main {
 		});
 	}
 
+	/**
+	 * Parse a non-negative integer.
+	 * @param value the integer to parse.
+	 * @return the integer, or {@code -1} if it is not valid.
+	 */
+	static int parseInt(String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Parse a size in bytes, with an optional {@code K}, {@code M} or {@code G} suffix.
+	 * @param size the size to parse.
+	 * @return the size in bytes, or {@code -1} if it is not valid.
+	 */
+	static long parseSize(String size) {
+		if(size.isEmpty()) return -1;
+
+		int shift = switch(Character.toUpperCase(size.charAt(size.length() - 1))) {
+			case 'K' -> 10;
+			case 'M' -> 20;
+			case 'G' -> 30;
+			default -> 0;
+		};
+		if(shift != 0) size = size.substring(0, size.length() - 1);
+
+		try {
+			return Long.parseLong(size) << shift;
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
 	public static boolean parseArg(String arg) {
 		for(Pair<String, String> key : args.keySet()) {
 			if(arg.startsWith(key.first()) || arg.startsWith(key.second())) {
@@ -0,0 +1,540 @@
+package dev.rdh.imag;
+
+import dev.rdh.imag.processors.Batcher;
+import dev.rdh.imag.processors.FileProcessor;
+import dev.rdh.imag.processors.Pipeline;
+import dev.rdh.imag.processors.impl.*;
+import dev.rdh.imag.processors.impl.archives.GZipProcessor;
+import dev.rdh.imag.processors.impl.archives.JarProcessor;
+import dev.rdh.imag.processors.impl.archives.ZipProcessor;
+import dev.rdh.imag.util.BlockSizeHistory;
+import dev.rdh.imag.util.CpuBudget;
+import dev.rdh.imag.util.ProcessorStats;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static dev.rdh.imag.util.StringUtils.*;
+
+/**
+ * Runs files through a chain of processors. This is the entry point for using imag as a library.
+ * <p>Each optimizer has its own processors, settings, statistics and executor, so several can be used at once in the same program.
+ * Nothing is printed; what each processor did is returned in the {@link Result}, and written to the log file.</p>
+ * <pre>{@code
+ * Optimizer optimizer = Optimizer.builder().passes(2).executor(new ForkJoinPool(4)).build();
+ * optimizer.optimize(Path.of("icon.png")).thenAccept(result -> ...);
+ * }</pre>
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public final class Optimizer {
+	private final List<Supplier<FileProcessor>> processors;
+	private final int passes;
+	private final boolean race;
+	private final boolean adaptive;
+	private final ForkJoinPool executor;
+	private final File workDir;
+	private final ProcessorStats stats = new ProcessorStats();
+
+	private Optimizer(Builder builder) {
+		// the defaults get their own copy of the settings, so changing the builder afterwards doesn't change them
+		this.processors = builder.processors != null ? List.copyOf(builder.processors) : defaultProcessors(builder.copy(), () -> this);
+		this.passes = builder.passes;
+		this.race = builder.race;
+		this.adaptive = builder.adaptive;
+		this.executor = builder.executor;
+		this.workDir = builder.workDir;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Make the list of processors that is used unless another one is given, in the order they run.
+	 * <p>The settings are read each time a processor is made, so changing them affects the processors made afterwards.</p>
+	 *
+	 * @param settings the builder holding the settings of the processors, like their effort.
+	 * @param archives the optimizer that the files inside zip and jar archives are run through.
+	 * @return the processors.
+	 */
+	public static List<Supplier<FileProcessor>> defaultProcessors(@NotNull Builder settings, @NotNull Supplier<Optimizer> archives) {
+		return List.of(
+				Reencoder::newInstance,
+				() -> NativePngProcessor.newInstance(settings.pngIterations, settings.pngTimeout),
+				() -> OxiPngProcessor.newInstance(settings.pngEffort, settings.pngTimeout),
+				() -> PngOutProcessor.newInstance(settings.pngoutCandidates, settings.pngoutHistory(), settings.workDir),
+				() -> NbtFileProcessor.newInstance(settings.gzipEffort, settings.gzipTimeout, settings.gzipBlockSize, settings.workDir),
+				OggProcessor::newInstance,
+				() -> GZipProcessor.newInstance(settings.gzipEffort, settings.gzipTimeout, settings.gzipBlockSize, settings.workDir),
+				() -> ZipProcessor.newInstance(archives.get(), settings.zipEffort, settings.zipTimeout),
+				() -> JarProcessor.newInstance(archives.get(), settings.zipEffort, settings.zipTimeout)
+		);
+	}
+
+	/**
+	 * Switch a list of processors to the external tools the native PNG stage replaced: ECT takes its place, and pngfix runs after PNGOUT.
+	 * <p>Both are run on batches of files if the settings ask for it, with batches shared by every processor made from the list.
+	 * ECT may use an even share of the cpus between the executor's threads on each image.</p>
+	 *
+	 * @param processors the processors to change.
+	 * @param settings the builder holding the batch size, executor and work directory.
+	 */
+	public static void useExternalTools(@NotNull List<Supplier<FileProcessor>> processors, @NotNull Builder settings) {
+		Batcher ect = new Batcher();
+		Batcher pngfix = new Batcher();
+		for(int i = 0; i < processors.size(); i++) {
+			if(processors.get(i).get() instanceof NativePngProcessor) {
+				processors.set(i, () -> EctPngProcessor.newInstance(settings.workDir, CpuBudget.share(settings.executor.getParallelism()), settings.batchSize, ect));
+			}
+		}
+		for(int i = 0; i < processors.size(); i++) {
+			if(processors.get(i).get() instanceof PngOutProcessor) {
+				processors.add(i + 1, () -> PngFixProcessor.newInstance(settings.workDir, settings.batchSize, pngfix));
+				break;
+			}
+		}
+	}
+
+	/**
+	 * What a processor did to a file.
+	 *
+	 * @param processor the name of the processor, or {@code Race} for a group of processors raced against each other.
+	 * @param before the size before it ran, in bytes.
+	 * @param after the size after it ran, in bytes.
+	 * @param nanos how long it took.
+	 * @param error why it failed, or {@code null} if it didn't. A processor that fails leaves the contents as they were.
+	 */
+	public record Step(String processor, long before, long after, long nanos, @Nullable Exception error) {
+		/**
+		 * @return the number of bytes saved, which is negative if the processor made the file larger.
+		 */
+		public long saved() {
+			return before - after;
+		}
+	}
+
+	/**
+	 * The outcome of optimizing a file.
+	 *
+	 * @param name the name of the file.
+	 * @param before the size before optimizing, in bytes.
+	 * @param after the size after optimizing, in bytes.
+	 * @param steps every processor that ran, in order, across all passes.
+	 * @param data the optimized contents, for contents that were given in memory. {@code null} for files, which are optimized in place.
+	 */
+	public record Result(String name, long before, long after, List<Step> steps, @Nullable ByteBuffer data) {
+		/**
+		 * @return the number of bytes saved.
+		 */
+		public long saved() {
+			return before - after;
+		}
+
+		/**
+		 * @return the processors that failed.
+		 */
+		public List<Step> errors() {
+			return steps.stream().filter(step -> step.error() != null).toList();
+		}
+	}
+
+	/**
+	 * Optimize a file, replacing it if the result is smaller.
+	 * <p>Up to the configured number of passes are run, stopping once one doesn't make the file smaller.</p>
+	 *
+	 * @param file the file to optimize.
+	 * @return a future that completes with the result once the file is done, or exceptionally if it could not be read or written.
+	 */
+	public CompletableFuture<Result> optimize(@NotNull Path file) {
+		return CompletableFuture.supplyAsync(() -> {
+			File f = file.toFile();
+			return job(f.getName(), f.getName(), tempFile -> Pipeline.load(f, tempFile), (pipeline, result) -> {
+				if(pipeline.size() < f.length()) pipeline.writeTo(f);
+				return result;
+			});
+		}, executor);
+	}
+
+	/**
+	 * Optimize contents held in memory.
+	 * <p>Up to the configured number of passes are run, stopping once one doesn't make the contents smaller.</p>
+	 *
+	 * @param data the contents to optimize, from their position to their limit. Not modified.
+	 * @param name the name of the file the contents are from, which decides the processors that run.
+	 * @return a future that completes with the result, including the optimized contents, once they are done.
+	 */
+	public CompletableFuture<Result> optimize(@NotNull ByteBuffer data, @NotNull String name) {
+		ByteBuffer input = data.duplicate();
+		// the name can come from anywhere, so only its last part is used for the temp file
+		String fileName = new File(name).getName();
+		return CompletableFuture.supplyAsync(() -> job(name, fileName, tempFile -> Pipeline.of(input, tempFile), (pipeline, result) ->
+				new Result(name, result.before(), result.after(), result.steps(), pipeline.buffer().duplicate())
+		), executor);
+	}
+
+	private interface Loader {
+		Pipeline load(File tempFile) throws IOException;
+	}
+
+	private interface Finisher {
+		Result finish(Pipeline pipeline, Result result) throws IOException;
+	}
+
+	/**
+	 * Run every pass on a file in its own temp directory, so that jobs never see each other's files.
+	 */
+	private Result job(String name, String fileName, Loader loader, Finisher finisher) {
+		File dir = null;
+		try {
+			dir = Files.createTempDirectory(workDir.toPath(), "job").toFile();
+			try(Pipeline pipeline = loader.load(new File(dir, fileName))) {
+				long before = pipeline.size();
+				List<Step> steps = new ArrayList<>();
+				for(int pass = 0; pass < passes; pass++) {
+					long pre = pipeline.size();
+					steps.addAll(run(pipeline, name, pass).steps());
+					if(pipeline.size() >= pre) break;
+				}
+				return finisher.finish(pipeline, new Result(name, before, pipeline.size(), Collections.unmodifiableList(steps), null));
+			}
+		} catch(IOException e) {
+			throw new CompletionException(e);
+		} finally {
+			if(dir != null) {
+				File[] leftover = dir.listFiles();
+				if(leftover != null) for(File f : leftover) f.delete();
+				dir.delete();
+			}
+		}
+	}
+
+	/**
+	 * Run one pass of every processor that applies to a file on its contents.
+	 * <p>Processors that fail are recorded in the result and skipped, leaving the contents as they were.</p>
+	 *
+	 * @param pipeline the pipeline holding the file's contents.
+	 * @param name the name of the file, which decides the processors that run.
+	 * @param pass the index of the pass, starting at 0. The reencoder only runs on the first.
+	 * @return the result of the pass, without the contents.
+	 */
+	public Result run(@NotNull Pipeline pipeline, @NotNull String name, int pass) {
+		long pre = pipeline.size();
+		List<Step> steps = new ArrayList<>();
+
+		// in race mode, consecutive raceable processors are collected and run together
+		List<Supplier<FileProcessor>> racers = new ArrayList<>();
+		for(Supplier<FileProcessor> s : processors) {
+			FileProcessor p = s.get();
+			if(!name.endsWith(p.extension())) continue;
+			if(pass > 0 && p instanceof Reencoder) continue;
+			if(race && p.raceable()) {
+				racers.add(s);
+				continue;
+			}
+
+			race(pipeline, racers, name, pre, steps);
+			long processorPre = pipeline.size();
+			String fileClass = ProcessorStats.fileClass(name, processorPre);
+			if(adaptive && stats.shouldSkip(p.name(), fileClass)) {
+				Main.LOGGER.info(p.name() + " on '" + name + "': skipped, rarely helps " + fileClass + " files");
+				continue;
+			}
+
+			long processorStart = System.nanoTime();
+			try {
+				pipeline.apply(p);
+			} catch(Exception e) {
+				steps.add(new Step(p.name(), processorPre, processorPre, System.nanoTime() - processorStart, e));
+				continue;
+			}
+			long processorPost = pipeline.size();
+			long nanos = System.nanoTime() - processorStart;
+			stats.record(p.name(), fileClass, processorPre, processorPost, nanos);
+			steps.add(new Step(p.name(), processorPre, processorPost, nanos, null));
+			Main.LOGGER.info(p.name() + " on '" + name + "': " + processorPre + " -> " + processorPost + " [" + sign(processorPost - processorPre) + "] (total: " + sign(processorPost - pre) + ")");
+		}
+		race(pipeline, racers, name, pre, steps);
+
+		return new Result(name, pre, pipeline.size(), Collections.unmodifiableList(steps), null);
+	}
+
+	/**
+	 * Race a group of processors on a file, then clear the group.
+	 */
+	private void race(Pipeline pipeline, List<Supplier<FileProcessor>> racers, String name, long pre, List<Step> steps) {
+		if(racers.isEmpty()) return;
+
+		long racePre = pipeline.size();
+		long raceStart = System.nanoTime();
+		try {
+			int rounds = pipeline.race(racers);
+			long racePost = pipeline.size();
+			long nanos = System.nanoTime() - raceStart;
+			stats.record("Race", ProcessorStats.fileClass(name, racePre), racePre, racePost, nanos);
+			steps.add(new Step("Race", racePre, racePost, nanos, null));
+			Main.LOGGER.info("Race on '" + name + "' (" + plural(rounds, "round") + "): " + racePre + " -> " + racePost + " [" + sign(racePost - racePre) + "] (total: " + sign(racePost - pre) + ")");
+		} catch(Exception e) {
+			steps.add(new Step("Race", racePre, pipeline.size(), System.nanoTime() - raceStart, e));
+		}
+		racers.clear();
+	}
+
+	/**
+	 * Get the names of the processors that will run on a file in the first pass, in order.
+	 *
+	 * @param name the name of the file.
+	 * @return the processor chain, or an empty string if no processor applies to the file.
+	 */
+	public String chain(@NotNull String name) {
+		StringBuilder sb = new StringBuilder();
+		boolean racing = false;
+		for(Supplier<FileProcessor> s : processors) {
+			FileProcessor p = s.get();
+			if(!name.endsWith(p.extension())) continue;
+
+			// racers are written as [a|b|c]
+			boolean racer = race && p.raceable();
+			if(racing && !racer) sb.append(']');
+			if(!sb.isEmpty()) sb.append(racing && racer ? '|' : '>');
+			if(!racing && racer) sb.append('[');
+			racing = racer;
+
+			sb.append(p.name());
+		}
+		if(racing) sb.append(']');
+		return sb.toString();
+	}
+
+	/**
+	 * @return how much each processor has helped so far, across every file this optimizer has run on.
+	 */
+	public ProcessorStats stats() {
+		return stats;
+	}
+
+	/**
+	 * @return the directory temp files are put in.
+	 */
+	public File workDir() {
+		return workDir;
+	}
+
+	public static final class Builder {
+		private List<Supplier<FileProcessor>> processors = null;
+		private int passes = 1;
+		private boolean race = false;
+		private boolean adaptive = false;
+		private ForkJoinPool executor = ForkJoinPool.commonPool();
+		private File workDir = Main.WORKDIR;
+		private int pngEffort = OxiPngProcessor.DEFAULT_EFFORT;
+		private long pngTimeout = 0;
+		private int pngIterations = NativePngProcessor.DEFAULT_ITERATIONS;
+		private int pngoutCandidates = PngOutProcessor.DEFAULT_CANDIDATES;
+		private BlockSizeHistory pngoutHistory = null;
+		private int gzipEffort = GZipProcessor.DEFAULT_EFFORT;
+		private long gzipTimeout = 0;
+		private int gzipBlockSize = 0;
+		private int zipEffort = ZipProcessor.DEFAULT_EFFORT;
+		private long zipTimeout = 0;
+		private int batchSize = 1;
+
+		private Builder() {}
+
+		/**
+		 * @return a builder with the same settings, and no processors.
+		 */
+		private Builder copy() {
+			Builder copy = new Builder();
+			copy.passes = passes;
+			copy.race = race;
+			copy.adaptive = adaptive;
+			copy.executor = executor;
+			copy.workDir = workDir;
+			copy.pngEffort = pngEffort;
+			copy.pngTimeout = pngTimeout;
+			copy.pngIterations = pngIterations;
+			copy.pngoutCandidates = pngoutCandidates;
+			copy.pngoutHistory = pngoutHistory();
+			copy.gzipEffort = gzipEffort;
+			copy.gzipTimeout = gzipTimeout;
+			copy.gzipBlockSize = gzipBlockSize;
+			copy.zipEffort = zipEffort;
+			copy.zipTimeout = zipTimeout;
+			copy.batchSize = batchSize;
+			return copy;
+		}
+
+		/**
+		 * The PNGOUT history, which is only loaded once a processor needs it.
+		 */
+		private synchronized BlockSizeHistory pngoutHistory() {
+			if(pngoutHistory == null) pngoutHistory = BlockSizeHistory.load();
+			return pngoutHistory;
+		}
+
+		/**
+		 * @param processors the processors to run, in order. Defaults to {@link #defaultProcessors(Builder, Supplier)} with the settings given here, and archive contents run through the optimizer being built.
+		 */
+		public Builder processors(@NotNull List<Supplier<FileProcessor>> processors) {
+			this.processors = processors;
+			return this;
+		}
+
+		/**
+		 * @param passes the most passes to run on each file. Passes stop once one doesn't make the file smaller. Defaults to 1.
+		 */
+		public Builder passes(int passes) {
+			if(passes < 1) throw new IllegalArgumentException("Invalid number of passes: " + passes);
+			this.passes = passes;
+			return this;
+		}
+
+		/**
+		 * @param race whether to run consecutive raceable processors at the same time and keep the best result. Defaults to {@code false}.
+		 */
+		public Builder race(boolean race) {
+			this.race = race;
+			return this;
+		}
+
+		/**
+		 * @param adaptive whether to skip processors that have rarely helped on the same kind of file so far. Defaults to {@code false}.
+		 */
+		public Builder adaptive(boolean adaptive) {
+			this.adaptive = adaptive;
+			return this;
+		}
+
+		/**
+		 * @param executor what runs each file, along with the work split off from it, like racing processors and the entries of archives. Defaults to the common fork join pool.
+		 */
+		public Builder executor(@NotNull ForkJoinPool executor) {
+			this.executor = Objects.requireNonNull(executor);
+			return this;
+		}
+
+		/**
+		 * @param workDir the directory to put temp files in. Defaults to a temp directory shared by the whole program.
+		 */
+		public Builder workDir(@NotNull File workDir) {
+			this.workDir = Objects.requireNonNull(workDir);
+			return this;
+		}
+
+		/**
+		 * @param effort the Oxipng preset, from 0 (fastest) to 6 (smallest). Defaults to {@value OxiPngProcessor#DEFAULT_EFFORT}.
+		 */
+		public Builder pngEffort(int effort) {
+			if(effort < 0 || effort > 6) throw new IllegalArgumentException("Invalid png effort: " + effort);
+			this.pngEffort = effort;
+			return this;
+		}
+
+		/**
+		 * @param millis how long Oxipng and the native PNG stage may spend on each image before settling for the best result so far. 0, the default, means no limit.
+		 */
+		public Builder pngTimeout(long millis) {
+			if(millis < 0) throw new IllegalArgumentException("Invalid png timeout: " + millis);
+			this.pngTimeout = millis;
+			return this;
+		}
+
+		/**
+		 * @param iterations the number of Zopfli iterations the native PNG stage runs, up to 255. Defaults to {@value NativePngProcessor#DEFAULT_ITERATIONS}.
+		 */
+		public Builder pngIterations(int iterations) {
+			if(iterations < 1 || iterations > 255) throw new IllegalArgumentException("Invalid png iterations: " + iterations);
+			this.pngIterations = iterations;
+			return this;
+		}
+
+		/**
+		 * @param candidates how many block sizes PNGOUT tries on each image. 0 tries all of them. Defaults to {@value PngOutProcessor#DEFAULT_CANDIDATES}.
+		 */
+		public Builder pngoutCandidates(int candidates) {
+			if(candidates < 0) throw new IllegalArgumentException("Invalid number of PNGOUT candidates: " + candidates);
+			this.pngoutCandidates = candidates;
+			return this;
+		}
+
+		/**
+		 * @param history which block sizes have won on which kinds of image, used to pick the PNGOUT candidates. Defaults to the history kept in imag's own directory, which is read but not written back.
+		 */
+		public synchronized Builder pngoutHistory(@NotNull BlockSizeHistory history) {
+			this.pngoutHistory = Objects.requireNonNull(history);
+			return this;
+		}
+
+		/**
+		 * @param effort the number of Zopfli iterations for gzip and nbt files. Defaults to {@value GZipProcessor#DEFAULT_EFFORT}.
+		 */
+		public Builder gzipEffort(int effort) {
+			if(effort < 1) throw new IllegalArgumentException("Invalid gzip effort: " + effort);
+			this.gzipEffort = effort;
+			return this;
+		}
+
+		/**
+		 * @param millis how long Zopfli may spend on each gzip or nbt file before settling for the best result so far. 0, the default, means no limit.
+		 */
+		public Builder gzipTimeout(long millis) {
+			if(millis < 0) throw new IllegalArgumentException("Invalid gzip timeout: " + millis);
+			this.gzipTimeout = millis;
+			return this;
+		}
+
+		/**
+		 * @param blockSize if above 0, gzip and nbt files are split into blocks of this many bytes that are compressed in parallel. Defaults to 0.
+		 */
+		public Builder gzipBlockSize(int blockSize) {
+			if(blockSize < 0) throw new IllegalArgumentException("Invalid block size: " + blockSize);
+			this.gzipBlockSize = blockSize;
+			return this;
+		}
+
+		/**
+		 * @param effort the number of Zopfli iterations for each entry of zip and jar archives. Defaults to {@value ZipProcessor#DEFAULT_EFFORT}.
+		 */
+		public Builder zipEffort(int effort) {
+			if(effort < 1) throw new IllegalArgumentException("Invalid zip effort: " + effort);
+			this.zipEffort = effort;
+			return this;
+		}
+
+		/**
+		 * @param millis how long Zopfli may spend on each entry of an archive before settling for the best result so far. 0, the default, means no limit.
+		 */
+		public Builder zipTimeout(long millis) {
+			if(millis < 0) throw new IllegalArgumentException("Invalid zip timeout: " + millis);
+			this.zipTimeout = millis;
+			return this;
+		}
+
+		/**
+		 * @param batchSize how many files to hand at once to external tools that take several. Defaults to 1, which runs them once per file.
+		 * @see #useExternalTools(List, Builder)
+		 */
+		public Builder batchSize(int batchSize) {
+			if(batchSize < 1) throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		public Optimizer build() {
+			return new Optimizer(this);
+		}
+	}
+}
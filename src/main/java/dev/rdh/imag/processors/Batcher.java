@@ -0,0 +1,93 @@
+package dev.rdh.imag.processors;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects files for a binary so that it can be run once on many of them, rather than once per file.
+ * <p>A batch is run as soon as it is full, or once it has waited {@link #LINGER_MS} for more files, whichever comes first.
+ * Every instance of a processor that should share batches is given the same batcher.</p>
+ */
+public final class Batcher {
+	/**
+	 * How long a batch waits for more files before running anyway, in milliseconds.
+	 */
+	static final long LINGER_MS = 50;
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "imag batch timer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final ExecutorService runner = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "imag batch runner");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private Batch current = null;
+
+	/**
+	 * Add a file to the current batch.
+	 *
+	 * @param processor the processor to run the batch with if this file starts a new one.
+	 * @param file the file to process.
+	 * @param size how many files make a full batch.
+	 * @return a future that completes once the batch with this file in it has run.
+	 */
+	CompletableFuture<Void> submit(BinaryFileProcessor processor, File file, int size) {
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		Batch full = null;
+		synchronized(this) {
+			if(current == null) {
+				Batch batch = new Batch(processor);
+				current = batch;
+				timer.schedule(() -> flush(batch), LINGER_MS, TimeUnit.MILLISECONDS);
+			}
+			current.files.add(file);
+			current.futures.add(result);
+			if(current.files.size() >= size) {
+				full = current;
+				current = null;
+			}
+		}
+
+		// the thread that fills a batch runs it, since it would only be waiting otherwise
+		if(full != null) full.run();
+		return result;
+	}
+
+	private void flush(Batch batch) {
+		synchronized(this) {
+			if(current != batch) return;
+			current = null;
+		}
+		runner.execute(batch::run);
+	}
+
+	private static final class Batch {
+		final BinaryFileProcessor processor;
+		final List<File> files = new ArrayList<>();
+		final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+		Batch(BinaryFileProcessor processor) {
+			this.processor = processor;
+		}
+
+		void run() {
+			try {
+				processor.processBatch(files);
+				futures.forEach(f -> f.complete(null));
+			} catch(Throwable e) {
+				futures.forEach(f -> f.completeExceptionally(e));
+			}
+		}
+	}
+}
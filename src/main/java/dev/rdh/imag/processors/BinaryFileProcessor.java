@@ -1,7 +1,7 @@
 package dev.rdh.imag.processors;
 
 import dev.rdh.imag.util.Binary;
-import dev.rdh.imag.Main;
+import dev.rdh.imag.util.CpuBudget;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
@@ -16,7 +16,33 @@ public abstract class BinaryFileProcessor implements FileProcessor {
 	protected final Binary binary;
 	final boolean front;
 
-	protected BinaryFileProcessor(boolean front, Binary binary, String... command) {
+	/**
+	 * The directory temp files are put in, and batches are run in.
+	 */
+	protected final File workDir;
+
+	/**
+	 * How many files to hand to the binary at once, if it takes several. 1 runs it once per file.
+	 */
+	private final int batchSize;
+	private final Batcher batcher;
+
+	/**
+	 * @param workDir the directory to put temp files in.
+	 */
+	protected BinaryFileProcessor(File workDir, boolean front, Binary binary, String... command) {
+		this(workDir, 1, null, front, binary, command);
+	}
+
+	/**
+	 * @param workDir the directory to put temp files in.
+	 * @param batchSize how many files to hand to the binary at once. Only used if {@link #batchable()} is {@code true}.
+	 * @param batcher collects the files of every instance into batches. May only be {@code null} if {@code batchSize} is 1.
+	 */
+	protected BinaryFileProcessor(File workDir, int batchSize, Batcher batcher, boolean front, Binary binary, String... command) {
+		this.workDir = workDir;
+		this.batchSize = batchSize;
+		this.batcher = batcher;
 		this.front = front;
 		this.binary = binary;
 
@@ -41,33 +67,80 @@ public abstract class BinaryFileProcessor implements FileProcessor {
 			return;
 		}
 
+		if(batchSize > 1 && batchable()) {
+			batcher.submit(this, file, batchSize).join();
+			return;
+		}
+
 		String name = String.valueOf(file.hashCode());
 
 		File output = tempFile(name);
 
 		addFilesToArgList(file, output.getName());
 
+		try(CpuBudget.Permit permit = CpuBudget.acquire(1, maxThreads())) {
+			setThreads(permit.count());
+			exec(output.getParentFile());
+		}
+
+		if(output.exists() && output.length() < file.length()) {
+			Files.move(output.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Run the command, discarding its output, and wait for it to finish.
+	 * @param directory the directory to run it in.
+	 */
+	protected final void exec(File directory) throws Exception {
 		ProcessBuilder pb = new ProcessBuilder(command)
-				.directory(output.getParentFile())
+				.directory(directory)
 				.redirectError(ProcessBuilder.Redirect.DISCARD)
 				.redirectOutput(ProcessBuilder.Redirect.DISCARD);
 
 		pb.start().waitFor();
+	}
 
-		if(output.exists() && output.length() < file.length()) {
-			Files.move(output.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
-		}
+	/**
+	 * Whether the binary can be run on several files at once with {@link #processBatch(List)}.
+	 * @return {@code true} if so.
+	 */
+	protected boolean batchable() {
+		return false;
 	}
 
+	/**
+	 * Run the binary once on several files, replacing each of them with its result if it is smaller.
+	 * <p>Only called if {@link #batchable()} is {@code true}, and only once per instance.</p>
+	 * @param files the files to process.
+	 */
+	protected void processBatch(List<File> files) throws Exception {
+		throw new UnsupportedOperationException(name() + " can't process files in batches");
+	}
+
+	/**
+	 * The most threads the binary can make use of. This many permits are taken from the {@link CpuBudget} if they are free.
+	 * @return the maximum number of threads.
+	 */
+	protected int maxThreads() {
+		return 1;
+	}
+
+	/**
+	 * Tell the binary how many threads it may use, once the permits have been taken.
+	 * @param threads the number of threads, between 1 and {@link #maxThreads()}.
+	 */
+	protected void setThreads(int threads) { }
+
 	protected final File tempFile(String name) throws Exception {
-		File result = File.createTempFile(name, '.' + extension(), Main.WORKDIR);
+		File result = File.createTempFile(name, '.' + extension(), workDir);
 		result.deleteOnExit();
 		result.delete();
 		return result;
 	}
 
 	protected final File tempDir(String name) throws Exception {
-		File result = Files.createTempDirectory(Main.WORKDIR.toPath(), name).toFile();
+		File result = Files.createTempDirectory(workDir.toPath(), name).toFile();
 		result.deleteOnExit();
 		return result;
 	}
@@ -0,0 +1,30 @@
+package dev.rdh.imag.processors;
+
+import dev.rdh.imag.util.BufferUtils;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * A processor that works on the contents of a file in memory, so a {@link Pipeline} can chain it with other in-memory processors without touching the disk.
+ */
+public abstract class BufferFileProcessor implements FileProcessor {
+
+	@Override
+	public final boolean supportsBuffers() {
+		return true;
+	}
+
+	@Override
+	public abstract ByteBuffer process(ByteBuffer data) throws Exception;
+
+	@Override
+	public void process(File file) throws Exception {
+		if(!file.getName().endsWith(extension())) return;
+
+		ByteBuffer data = BufferUtils.read(file);
+		ByteBuffer result = process(data);
+		if(result != data) {
+			BufferUtils.write(result, file);
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package dev.rdh.imag.processors;
 
+import dev.rdh.imag.util.PngInfo;
 import java.io.File;
+import java.nio.ByteBuffer;
 
 public interface FileProcessor {
 	/**
@@ -10,6 +12,53 @@ public interface FileProcessor {
 	 */
 	void process(File file) throws Exception;
 
+	/**
+	 * Process the contents of a file in memory. Only called if {@link #supportsBuffers()} returns true.
+	 * @param data The contents of the file, from its position to its limit. Must not be modified
+	 * @return The processed contents, or {@code data} itself if nothing changed
+	 * @throws Exception If an error occurs
+	 */
+	default ByteBuffer process(ByteBuffer data) throws Exception {
+		throw new UnsupportedOperationException(name() + " can only process files");
+	}
+
+	/**
+	 * Process the given file, with an analysis of it that was already made. Processors that can use it override this
+	 * @param file The file to process
+	 * @param info The analysis of the file, or {@code null} if it isn't a PNG or hasn't been analysed
+	 * @throws Exception If an error occurs
+	 */
+	default void process(File file, PngInfo info) throws Exception {
+		process(file);
+	}
+
+	/**
+	 * Process the contents of a file in memory, with an analysis of them that was already made. Processors that can use it override this
+	 * @param data The contents of the file, from its position to its limit. Must not be modified
+	 * @param info The analysis of the contents, or {@code null} if they aren't a PNG
+	 * @return The processed contents, or {@code data} itself if nothing changed
+	 * @throws Exception If an error occurs
+	 */
+	default ByteBuffer process(ByteBuffer data, PngInfo info) throws Exception {
+		return process(data);
+	}
+
+	/**
+	 * Whether this processor can work in memory through {@link #process(ByteBuffer)}
+	 * @return Whether this processor can work in memory
+	 */
+	default boolean supportsBuffers() {
+		return false;
+	}
+
+	/**
+	 * Whether this processor is a complete optimizer on its own, so in race mode it can run at the same time as the others from the same input
+	 * @return Whether this processor can be raced
+	 */
+	default boolean raceable() {
+		return false;
+	}
+
 	/**
 	 * The name of the processor
 	 * @return The name of the processor
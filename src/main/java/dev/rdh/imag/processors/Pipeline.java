@@ -0,0 +1,216 @@
+package dev.rdh.imag.processors;
+
+import dev.rdh.imag.Main;
+import dev.rdh.imag.util.BufferUtils;
+import dev.rdh.imag.util.PngInfo;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+/**
+ * Runs a file through a series of processors, keeping it in memory for as long as possible.
+ * <p>Processors that {@link FileProcessor#supportsBuffers() support buffers} are handed the data directly. The data is only written to the temp file when a processor that needs a file on disk comes up, and is only read back when the next in-memory processor needs it.</p>
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class Pipeline implements AutoCloseable {
+	/**
+	 * Files larger than this are never loaded into memory, and are only handed to processors on disk.
+	 */
+	public static final long MAX_BUFFERED = 256 << 20;
+
+	private final File tempFile;
+
+	/**
+	 * The current contents of the file, or {@code null} if the temp file is newer.
+	 */
+	private ByteBuffer data;
+
+	/**
+	 * Whether the temp file holds the current contents.
+	 */
+	private boolean fileCurrent = false;
+
+	/**
+	 * The analysis of the current contents, or {@code null} if it hasn't been made yet.
+	 */
+	private PngInfo info;
+
+	private Pipeline(ByteBuffer data, File tempFile) {
+		this.data = data;
+		this.tempFile = tempFile;
+	}
+
+	/**
+	 * Start a pipeline for a file.
+	 *
+	 * @param file the file to process. It is only read, never written to.
+	 * @param tempFile where to put the contents for processors that need a file on disk. Must have the same extension as {@code file}.
+	 * @return the pipeline.
+	 * @throws IOException if the file could not be read.
+	 */
+	public static Pipeline load(File file, File tempFile) throws IOException {
+		if(file.length() > MAX_BUFFERED) {
+			Files.copy(file.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Pipeline pipeline = new Pipeline(null, tempFile);
+			pipeline.fileCurrent = true;
+			return pipeline;
+		}
+		return new Pipeline(BufferUtils.read(file), tempFile);
+	}
+
+	/**
+	 * Start a pipeline for data that is already in memory.
+	 *
+	 * @param data the contents to process. Only read, never written to.
+	 * @param tempFile where to put the contents for processors that need a file on disk. Must have the extension the contents would have on disk.
+	 * @return the pipeline.
+	 */
+	public static Pipeline of(ByteBuffer data, File tempFile) {
+		return new Pipeline(data, tempFile);
+	}
+
+	/**
+	 * Run a processor on the current contents.
+	 *
+	 * @param processor the processor to run.
+	 * @throws Exception if the processor fails. The contents are left as they were before it ran.
+	 */
+	public void apply(FileProcessor processor) throws Exception {
+		if(processor.supportsBuffers() && size() <= MAX_BUFFERED) {
+			ByteBuffer input = buffer().duplicate();
+			ByteBuffer result = processor.process(input, info());
+			if(result != null && result != input) {
+				data = result;
+				fileCurrent = false;
+				info = null;
+			}
+		} else {
+			// only analyse what's already in memory, rather than reading the file back just for that
+			processor.process(file(), data != null ? info() : info);
+			data = null;
+			info = null;
+		}
+	}
+
+	/**
+	 * @return the analysis of the current contents, made the first time it's needed, or {@code null} if they aren't a PNG or are too large to hold in memory.
+	 * @throws IOException if the temp file could not be read.
+	 */
+	public PngInfo info() throws IOException {
+		if(info == null && tempFile.getName().endsWith(".png") && size() <= MAX_BUFFERED) {
+			info = PngInfo.of(buffer());
+		}
+		return info;
+	}
+
+	/**
+	 * Run several processors at once, each on its own copy of the current contents, and keep the smallest result.
+	 * <p>If that result is an improvement, another round is run starting from it, until a round doesn't improve anything.</p>
+	 *
+	 * @param racers the processors to run. A new instance is made for each round.
+	 * @return the number of rounds that were run.
+	 * @throws Exception if the contents could not be read or written.
+	 */
+	public int race(List<Supplier<FileProcessor>> racers) throws Exception {
+		if(size() > MAX_BUFFERED) {
+			// too big to copy for every racer, so they run one after another instead
+			for(Supplier<FileProcessor> racer : racers) {
+				apply(racer.get());
+			}
+			return 1;
+		}
+
+		int rounds = 0;
+		while(true) {
+			rounds++;
+			ByteBuffer current = buffer();
+
+			List<ForkJoinTask<ByteBuffer>> tasks = new ArrayList<>();
+			for(int i = 0; i < racers.size(); i++) {
+				FileProcessor racer = racers.get(i).get();
+				File racerFile = new File(tempFile.getParentFile(), "race-" + i + "-" + tempFile.getName());
+				tasks.add(ForkJoinTask.adapt(() -> {
+					try(Pipeline copy = new Pipeline(current.duplicate(), racerFile)) {
+						copy.info = info;
+						copy.apply(racer);
+						return copy.buffer();
+					} catch(Exception e) {
+						Main.LOGGER.error("Failed to race " + racer.name() + " on '" + tempFile.getName() + "'", e);
+						return null;
+					}
+				}));
+			}
+
+			ByteBuffer best = current;
+			for(ForkJoinTask<ByteBuffer> task : ForkJoinTask.invokeAll(tasks)) {
+				ByteBuffer result = task.join();
+				if(result != null && result.remaining() < best.remaining()) {
+					best = result;
+				}
+			}
+
+			if(best == current) return rounds;
+			data = best;
+			fileCurrent = false;
+			info = null;
+		}
+	}
+
+	/**
+	 * @return the current contents, read back from the temp file if a processor changed it.
+	 * @throws IOException if the temp file could not be read.
+	 */
+	public ByteBuffer buffer() throws IOException {
+		if(data == null) {
+			data = BufferUtils.read(tempFile);
+		}
+		return data;
+	}
+
+	/**
+	 * @return the temp file, after writing the current contents to it if they are newer.
+	 * @throws IOException if the temp file could not be written.
+	 */
+	public File file() throws IOException {
+		if(!fileCurrent) {
+			BufferUtils.write(data, tempFile);
+			fileCurrent = true;
+		}
+		return tempFile;
+	}
+
+	/**
+	 * @return the size of the current contents, in bytes.
+	 */
+	public long size() {
+		return data != null ? data.remaining() : tempFile.length();
+	}
+
+	/**
+	 * Write the current contents to a file.
+	 *
+	 * @param target the file to write to.
+	 * @throws IOException if the file could not be written.
+	 */
+	public void writeTo(File target) throws IOException {
+		if(data != null) {
+			BufferUtils.write(data, target);
+		} else {
+			Files.copy(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Delete the temp file.
+	 */
+	@Override
+	public void close() {
+		tempFile.delete();
+	}
+}
@@ -1,15 +1,67 @@
 package dev.rdh.imag.processors.impl;
 
+import dev.rdh.imag.processors.Batcher;
 import dev.rdh.imag.processors.BinaryFileProcessor;
 import dev.rdh.imag.util.Binary;
+import dev.rdh.imag.util.CpuBudget;
+import java.io.File;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
 
 public class EctPngProcessor extends BinaryFileProcessor {
-	private EctPngProcessor() {
-		super(false, Binary.ECT, "-9 --allfilters-b -strip -keep -quiet --mt-deflate");
+	private final int maxThreads;
+
+	private EctPngProcessor(File workDir, int maxThreads, int batchSize, Batcher batcher) {
+		super(workDir, batchSize, batcher, false, Binary.ECT, "-9 --allfilters-b -strip -keep -quiet");
+		this.maxThreads = maxThreads;
+	}
+
+	/**
+	 * @param workDir the directory to put temp files in.
+	 * @param maxThreads the most threads ECT may use on one image. One image shouldn't take every cpu away from the others being worked on, see {@link CpuBudget#share(int)}.
+	 */
+	public static EctPngProcessor newInstance(@NotNull File workDir, int maxThreads) {
+		return new EctPngProcessor(workDir, maxThreads, 1, null);
+	}
+
+	/**
+	 * @param workDir the directory to put temp files in, and run batches in.
+	 * @param maxThreads the most threads ECT may use on one image.
+	 * @param batchSize how many images to hand to ECT at once.
+	 * @param batcher collects the images of every instance into batches.
+	 */
+	public static EctPngProcessor newInstance(@NotNull File workDir, int maxThreads, int batchSize, @NotNull Batcher batcher) {
+		return new EctPngProcessor(workDir, maxThreads, batchSize, batcher);
+	}
+
+	@Override
+	protected int maxThreads() {
+		return maxThreads;
+	}
+
+	@Override
+	protected void setThreads(int threads) {
+		if(threads > 1) command.add("--mt-deflate=" + threads);
+	}
+
+	@Override
+	protected boolean batchable() {
+		return true;
 	}
 
-	public static EctPngProcessor newInstance() {
-		return new EctPngProcessor();
+	@Override
+	protected void processBatch(List<File> files) throws Exception {
+		// ect optimizes every file it's given in place, and can work on several at once
+		command.add(0, binary.path());
+		for(File file : files) {
+			command.add(file.getCanonicalPath());
+		}
+
+		try(CpuBudget.Permit permit = CpuBudget.acquire(1, Math.min(maxThreads() * files.size(), CpuBudget.size()))) {
+			if(permit.count() > 1) command.add("--mt-file=" + permit.count());
+			exec(workDir);
+		}
 	}
 
 	@Override
@@ -21,4 +73,9 @@ public class EctPngProcessor extends BinaryFileProcessor {
 	public String extension() {
 		return "png";
 	}
+
+	@Override
+	public boolean raceable() {
+		return true;
+	}
 }
@@ -0,0 +1,78 @@
+package dev.rdh.imag.processors.impl;
+
+import dev.rdh.imag.processors.BufferFileProcessor;
+import dev.rdh.imag.util.BufferUtils;
+import dev.rdh.imag.util.CpuBudget;
+import dev.rdh.imag.util.PngInfo;
+import java.nio.ByteBuffer;
+
+/**
+ * Repairs, strips and recompresses PNGs in the native library, doing the work of pngfix and ECT without starting a process for every file.
+ * <p>Bad checksums are fixed, every metadata chunk is removed, and the image data is recompressed with Zopfli.
+ * Animated PNGs are left alone, since their frames are kept in chunks that would be stripped.</p>
+ */
+public class NativePngProcessor extends BufferFileProcessor {
+
+	/**
+	 * The number of Zopfli iterations run unless another is given.
+	 */
+	public static final int DEFAULT_ITERATIONS = 15;
+
+	private final int iterations;
+	private final long timeout;
+
+	private NativePngProcessor(int iterations, long timeout) {
+		this.iterations = iterations;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param iterations the number of Zopfli iterations to run, up to 255.
+	 * @param timeout how long to spend on each file, in milliseconds, before settling for the best result so far. 0 means no limit.
+	 */
+	public static NativePngProcessor newInstance(int iterations, long timeout) {
+		return new NativePngProcessor(iterations, timeout);
+	}
+
+	@Override
+	public String name() {
+		return "NativePNG";
+	}
+
+	@Override
+	public String extension() {
+		return "png";
+	}
+
+	@Override
+	public boolean raceable() {
+		return true;
+	}
+
+	@Override
+	public ByteBuffer process(ByteBuffer input) throws Exception {
+		return process(input, null);
+	}
+
+	@Override
+	public ByteBuffer process(ByteBuffer input, PngInfo info) throws Exception {
+		if(info == null) info = PngInfo.of(input);
+		// a file that's damaged further on can still be recognised as animated, since acTL comes before the image data
+		if(info.animated()) return input;
+
+		ByteBuffer data = BufferUtils.direct(input);
+		// only a result smaller than the input is useful, so it never needs more room than that
+		ByteBuffer output = ByteBuffer.allocateDirect(data.remaining());
+		int length;
+		try(CpuBudget.Permit permit = CpuBudget.acquire()) {
+			length = compressDirect(data, data.remaining(), output, iterations, timeout);
+		}
+		return length < 0 || length >= input.remaining() ? input : output.limit(length);
+	}
+
+	/**
+	 * Run the native stage on the start of {@code src}, writing the result to the start of {@code dst}. Both buffers must be direct.
+	 * @return the length of the result, or {@code -1} if it doesn't fit in {@code dst}.
+	 */
+	private static native int compressDirect(ByteBuffer src, int length, ByteBuffer dst, int iterations, long timeoutMillis);
+}
@@ -1,14 +1,28 @@
 package dev.rdh.imag.processors.impl;
 
 import dev.rdh.imag.processors.impl.archives.GZipProcessor;
+import dev.rdh.imag.util.NbtCanonicalizer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.jetbrains.annotations.NotNull;
 
 public class NbtFileProcessor extends GZipProcessor {
-	private NbtFileProcessor() {
-		super();
+	private NbtFileProcessor(int effort, long timeout, int blockSize, File workDir) {
+		super(effort, timeout, blockSize, workDir);
 	}
 
-	public static NbtFileProcessor newInstance() {
-		return new NbtFileProcessor();
+	/**
+	 * @param effort the number of Zopfli iterations to run.
+	 * @param timeout how long Zopfli may spend on each file, in milliseconds. 0 means no limit.
+	 * @param blockSize if above 0, the size of the blocks that are compressed in parallel.
+	 * @param workDir the directory to put streamed results in.
+	 * @see GZipProcessor#newInstance(int, long, int, File)
+	 */
+	public static NbtFileProcessor newInstance(int effort, long timeout, int blockSize, @NotNull File workDir) {
+		return new NbtFileProcessor(effort, timeout, blockSize, workDir);
 	}
 
 	@Override
@@ -20,4 +34,9 @@ public class NbtFileProcessor extends GZipProcessor {
 	public String extension() {
 		return "nbt";
 	}
+
+	@Override
+	protected void transcode(InputStream in, OutputStream out) throws IOException {
+		NbtCanonicalizer.transcode(in, out);
+	}
 }
@@ -0,0 +1,46 @@
+package dev.rdh.imag.processors.impl;
+
+import dev.rdh.imag.processors.BufferFileProcessor;
+import dev.rdh.imag.util.BufferUtils;
+import dev.rdh.imag.util.CpuBudget;
+import java.nio.ByteBuffer;
+
+/**
+ * Losslessly optimizes Ogg Vorbis files with OptiVorbis, which is linked into the native library.
+ */
+public class OggProcessor extends BufferFileProcessor {
+
+	private OggProcessor() {}
+
+	public static OggProcessor newInstance() {
+		return new OggProcessor();
+	}
+
+	@Override
+	public String name() {
+		return "OptiVorbis";
+	}
+
+	@Override
+	public String extension() {
+		return "ogg";
+	}
+
+	@Override
+	public ByteBuffer process(ByteBuffer input) throws Exception {
+		ByteBuffer data = BufferUtils.direct(input);
+		ByteBuffer output = ByteBuffer.allocateDirect(data.remaining());
+		int length;
+		try(CpuBudget.Permit permit = CpuBudget.acquire()) {
+			length = remuxDirect(data, data.remaining(), output);
+		}
+		return length < 0 || length >= input.remaining() ? input : output.limit(length);
+	}
+
+	/**
+	 * Run OptiVorbis on the start of {@code src}, writing the result to the start of {@code dst}. Both buffers must be direct.
+	 * @return the length of the result, or {@code -1} if it doesn't fit in {@code dst}.
+	 * @throws Exception if the file is not a valid Ogg Vorbis file.
+	 */
+	private static native int remuxDirect(ByteBuffer src, int length, ByteBuffer dst) throws Exception;
+}
@@ -1,15 +1,32 @@
 package dev.rdh.imag.processors.impl;
 
-import dev.rdh.imag.processors.FileProcessor;
-import java.io.File;
-import java.nio.file.Files;
+import dev.rdh.imag.processors.BufferFileProcessor;
+import dev.rdh.imag.util.BufferUtils;
+import dev.rdh.imag.util.CpuBudget;
+import dev.rdh.imag.util.PngInfo;
+import java.nio.ByteBuffer;
 
-public class OxiPngProcessor implements FileProcessor {
+public class OxiPngProcessor extends BufferFileProcessor {
 
-	private OxiPngProcessor() {}
+	/**
+	 * The Oxipng preset used unless another is given.
+	 */
+	public static final int DEFAULT_EFFORT = 6;
 
-	public static OxiPngProcessor newInstance() {
-		return new OxiPngProcessor();
+	private final int effort;
+	private final long timeout;
+
+	private OxiPngProcessor(int effort, long timeout) {
+		this.effort = effort;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param effort the Oxipng preset to use, from 0 (fastest) to 6 (smallest).
+	 * @param timeout how long Oxipng may spend on each file, in milliseconds, before it settles for the best result so far. 0 means no limit.
+	 */
+	public static OxiPngProcessor newInstance(int effort, long timeout) {
+		return new OxiPngProcessor(effort, timeout);
 	}
 
 	@Override
@@ -23,18 +40,54 @@ public class OxiPngProcessor implements FileProcessor {
 	}
 
 	@Override
-	public void process(File file) throws Exception {
-		if(!file.getCanonicalPath().endsWith(extension())) return;
+	public boolean raceable() {
+		return true;
+	}
+
+	@Override
+	public ByteBuffer process(ByteBuffer input) throws Exception {
+		return process(input, null);
+	}
+
+	@Override
+	public ByteBuffer process(ByteBuffer input, PngInfo info) throws Exception {
+		// optimizing transparent pixels can only help if there are any
+		boolean alpha = info == null || !info.valid() || info.hasAlpha();
 
-		byte[] data = Files.readAllBytes(file.toPath());
-		byte[] compressed = compress(data, false);
-		if(compressed.length < data.length) data = compressed;
+		ByteBuffer data = BufferUtils.direct(input);
+		try(CpuBudget.Permit permit = CpuBudget.acquire()) {
+			long deadline = System.currentTimeMillis() + timeout;
 
-		byte[] compressedAlpha = compress(data, true);
-		if(compressedAlpha.length < data.length) data = compressedAlpha;
+			ByteBuffer compressed = compress(data, false, timeout);
+			if(compressed != null) data = compressed;
+
+			long remaining = deadline - System.currentTimeMillis();
+			if(alpha && (timeout == 0 || remaining > 0)) {
+				ByteBuffer compressedAlpha = compress(data, true, timeout == 0 ? 0 : remaining);
+				if(compressedAlpha != null) data = compressedAlpha;
+			}
+		}
+
+		return data.remaining() < input.remaining() ? data : input;
+	}
 
-		if(data.length < file.length()) Files.write(file.toPath(), data);
+	/**
+	 * Run Oxipng on a direct buffer.
+	 * @param data the png, positioned at its start.
+	 * @param alpha whether to optimize fully transparent pixels.
+	 * @param timeout the time limit in milliseconds, or 0 for none.
+	 * @return the result, or {@code null} if it wasn't smaller.
+	 */
+	private ByteBuffer compress(ByteBuffer data, boolean alpha, long timeout) {
+		ByteBuffer output = ByteBuffer.allocateDirect(data.remaining());
+		int length = compressDirect(data, data.remaining(), output, alpha, effort, timeout);
+		return length < 0 || length >= data.remaining() ? null : output.limit(length);
 	}
 
-	private static native byte[] compress(byte[] data, boolean alpha);
+	/**
+	 * Run Oxipng on the start of {@code src}, writing the result to the start of {@code dst}. Both buffers must be direct.
+	 * <p>Once {@code timeoutMillis} have passed, Oxipng stops trying new options and returns the best result so far.</p>
+	 * @return the length of the result, or {@code -1} if it doesn't fit in {@code dst}.
+	 */
+	private static native int compressDirect(ByteBuffer src, int length, ByteBuffer dst, boolean alpha, int level, long timeoutMillis);
 }
@@ -1,17 +1,42 @@
 package dev.rdh.imag.processors.impl;
 
+import dev.rdh.imag.processors.Batcher;
 import dev.rdh.imag.processors.BinaryFileProcessor;
 import dev.rdh.imag.util.Binary;
+import dev.rdh.imag.util.CpuBudget;
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
 
+import org.jetbrains.annotations.NotNull;
+
+@SuppressWarnings("ResultOfMethodCallIgnored")
 public class PngFixProcessor extends BinaryFileProcessor {
 
-	private PngFixProcessor() {
-		super(true, Binary.PNGFIX, "-o --strip=all -q");
+	/**
+	 * Added to the name of each file to get the name of its result when running on a batch.
+	 */
+	private static final String SUFFIX = ".imag-fixed";
+
+	private PngFixProcessor(File workDir, int batchSize, Batcher batcher) {
+		super(workDir, batchSize, batcher, true, Binary.PNGFIX, "-o --strip=all -q");
+	}
+
+	/**
+	 * @param workDir the directory to put temp files in.
+	 */
+	public static PngFixProcessor newInstance(@NotNull File workDir) {
+		return new PngFixProcessor(workDir, 1, null);
 	}
 
-	public static PngFixProcessor newInstance() {
-		return new PngFixProcessor();
+	/**
+	 * @param workDir the directory to put temp files in, and run batches in.
+	 * @param batchSize how many images to hand to pngfix at once.
+	 * @param batcher collects the images of every instance into batches.
+	 */
+	public static PngFixProcessor newInstance(@NotNull File workDir, int batchSize, @NotNull Batcher batcher) {
+		return new PngFixProcessor(workDir, batchSize, batcher);
 	}
 
 	@Override
@@ -24,6 +49,34 @@ public class PngFixProcessor extends BinaryFileProcessor {
 		return "png";
 	}
 
+	@Override
+	protected boolean batchable() {
+		return true;
+	}
+
+	@Override
+	protected void processBatch(List<File> files) throws Exception {
+		// --out only works for one file, so each result is written next to its input instead
+		command.add(0, binary.path());
+		command.add("--suffix=" + SUFFIX);
+		for(File file : files) {
+			command.add(file.getCanonicalPath());
+		}
+
+		try(CpuBudget.Permit permit = CpuBudget.acquire()) {
+			exec(workDir);
+		}
+
+		for(File file : files) {
+			File output = new File(file.getPath() + SUFFIX);
+			if(output.exists() && output.length() < file.length()) {
+				Files.move(output.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				output.delete();
+			}
+		}
+	}
+
 	@Override
 	protected void addFilesToArgList(File file, String output) throws Exception {
 		command.add(0, binary.path());
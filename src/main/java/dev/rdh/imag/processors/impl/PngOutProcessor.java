@@ -3,23 +3,42 @@ package dev.rdh.imag.processors.impl;
 import dev.rdh.imag.Main;
 import dev.rdh.imag.processors.BinaryFileProcessor;
 import dev.rdh.imag.util.Binary;
+import dev.rdh.imag.util.BlockSizeHistory;
+import dev.rdh.imag.util.CpuBudget;
+import dev.rdh.imag.util.PngInfo;
+import dev.rdh.imag.util.PngUtils;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.concurrent.CompletableFuture;
 
-@SuppressWarnings({ "DuplicatedCode", "DataFlowIssue" })
+import org.jetbrains.annotations.NotNull;
+
+@SuppressWarnings({ "DuplicatedCode", "ResultOfMethodCallIgnored" })
 public class PngOutProcessor extends BinaryFileProcessor {
 
-	private PngOutProcessor() {
-		super(true, Binary.PNGOUT, "-q -y -r -k1 -s0");
+	/**
+	 * How many block sizes are tried on each image unless another number is given.
+	 */
+	public static final int DEFAULT_CANDIDATES = 3;
+
+	private final int candidates;
+	private final BlockSizeHistory history;
+
+	private PngOutProcessor(int candidates, BlockSizeHistory history, File workDir) {
+		super(workDir, true, Binary.PNGOUT, "-q -y -r -k1 -s0");
+		this.candidates = candidates;
+		this.history = history;
 	}
 
-	public static PngOutProcessor newInstance() {
-		return new PngOutProcessor();
+	/**
+	 * @param candidates how many block sizes to try on each image, picked by the history. 0 tries all of them.
+	 * @param history which block sizes have won on which kinds of image, updated with the winners of full sweeps.
+	 * @param workDir the directory to put the results of each block size in.
+	 */
+	public static PngOutProcessor newInstance(int candidates, @NotNull BlockSizeHistory history, @NotNull File workDir) {
+		return new PngOutProcessor(candidates, history, workDir);
 	}
 
 	@Override
@@ -32,9 +51,21 @@ public class PngOutProcessor extends BinaryFileProcessor {
 		return "png";
 	}
 
+	@Override
+	public boolean raceable() {
+		return true;
+	}
+
 	@Override
 	public void process(File file) throws Exception {
-		final int[] blockSizes = { 0, 128, 192, 256, 512, 1024, 2048, 4096, 8192 };
+		process(file, null);
+	}
+
+	@Override
+	public void process(File file, PngInfo info) throws Exception {
+		long size = file.length();
+		long pixels = info != null && info.valid() ? info.pixels() : PngUtils.pixels(file);
+		int[] blockSizes = history.candidates(size, pixels, candidates);
 
 		CompletableFuture<?>[] asyncs = new CompletableFuture<?>[blockSizes.length];
 
@@ -45,27 +76,54 @@ public class PngOutProcessor extends BinaryFileProcessor {
 			command.add(0, binary.path());
 			command.add(1, "-b" + blockSizes[i]);
 			command.add(file.getCanonicalPath());
+			command.add(output(outputDir, blockSizes[i]).getName());
 
 			ProcessBuilder builder = new ProcessBuilder(command)
 					.directory(outputDir)
 					.redirectError(ProcessBuilder.Redirect.DISCARD)
 					.redirectOutput(ProcessBuilder.Redirect.DISCARD);
 
-			asyncs[i] = builder.start().onExit();
+			// each process holds a permit until it exits, so only as many run at once as the budget allows
+			CpuBudget.Permit permit = CpuBudget.acquire();
+			try {
+				asyncs[i] = builder.start().onExit().whenComplete((p, e) -> permit.close());
+			} catch(Exception e) {
+				permit.close();
+				throw e;
+			}
 		}
 
 		CompletableFuture.allOf(asyncs).join();
 
-		if(outputDir.listFiles() == null) {
+		File bestResult = null;
+		int bestBlockSize = -1;
+		for(int blockSize : blockSizes) {
+			File output = output(outputDir, blockSize);
+			if(output.isFile() && (bestResult == null || output.length() < bestResult.length())) {
+				bestResult = output;
+				bestBlockSize = blockSize;
+			}
+		}
+
+		if(bestResult == null) {
 			Main.LOGGER.error("No output files found for file " + file.getName() + "!");
 			return;
 		}
 
-		File bestResult = Arrays.stream(outputDir.listFiles())
-								.min(Comparator.comparingLong(File::length))
-								.orElse(file);
-		if(bestResult.length() < file.length()) {
+		if(bestResult.length() < size) {
+			// only a full sweep says which block size is really best, a few candidates can only confirm the ranking that picked them
+			if(blockSizes.length == BlockSizeHistory.BLOCK_SIZES.length) {
+				history.record(size, pixels, bestBlockSize);
+			}
 			Files.copy(bestResult.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
 		}
+
+		for(int blockSize : blockSizes) {
+			output(outputDir, blockSize).delete();
+		}
+	}
+
+	private static File output(File dir, int blockSize) {
+		return new File(dir, "b" + blockSize + ".png");
 	}
 }
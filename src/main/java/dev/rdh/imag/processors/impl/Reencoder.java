@@ -1,16 +1,21 @@
 package dev.rdh.imag.processors.impl;
 
-import dev.rdh.imag.processors.FileProcessor;
-import dev.rdh.imag.util.PngUtils;
+import dev.rdh.imag.processors.BufferFileProcessor;
+import dev.rdh.imag.util.CpuBudget;
+import dev.rdh.imag.util.PngInfo;
 import java.awt.image.BufferedImage;
-import java.io.File;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.pngencoder.PngEncoder;
 
-import javax.imageio.ImageIO;
-
-public class Reencoder implements FileProcessor {
+/**
+ * Decodes PNGs and encodes them again from scratch, picking the colour type from the pixels rather than the file.
+ * <p>Opaque images lose their alpha channel, and images with few enough colours are tried with a palette.</p>
+ */
+public class Reencoder extends BufferFileProcessor {
 
 	private Reencoder() {}
 
@@ -29,18 +34,48 @@ public class Reencoder implements FileProcessor {
 	}
 
 	@Override
-	public void process(File file) throws Exception {
-		if(!PngUtils.isPNG(file) || PngUtils.isAnimated(file)) return;
+	public ByteBuffer process(ByteBuffer data) throws Exception {
+		return process(data, PngInfo.of(data));
+	}
+
+	@Override
+	public ByteBuffer process(ByteBuffer data, PngInfo info) throws Exception {
+		if(info == null || !info.valid() || info.animated()) return data;
 
-		BufferedImage bi = ImageIO.read(file);
+		try(CpuBudget.Permit permit = CpuBudget.acquire()) {
+			BufferedImage bi = info.image();
 
-		if(bi == null) {
-			throw new IOException("Failed to read image");
+			if(bi == null) {
+				throw new IOException("Failed to read image");
+			}
+
+			// the stats come from ARGB values, which are only exactly the samples for palette and 8-bit colour images
+			ColorModel model = bi.getColorModel();
+			boolean palette = model instanceof IndexColorModel;
+			boolean exact = palette || model.getNumColorComponents() == 3 && model.getPixelSize() <= 32;
+			PngInfo.Stats stats = exact ? info.stats() : null;
+			if(stats != null && !palette && stats.opaque() && model.hasAlpha()) {
+				bi = opaque(bi);
+			}
+
+			return ByteBuffer.wrap(new PngEncoder()
+					.withBufferedImage(bi)
+					.withTryIndexedEncoding(stats != null && stats.colors() <= 256)
+					.withMultiThreadedCompressionEnabled(false)
+					.toBytes());
 		}
+	}
 
-		new PngEncoder()
-				.withBufferedImage(bi)
-				.withMultiThreadedCompressionEnabled(false)
-				.toFile(file);
+	/**
+	 * Copy an image without its alpha channel.
+	 */
+	private static BufferedImage opaque(BufferedImage image) {
+		BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		int[] row = new int[image.getWidth()];
+		for(int y = 0; y < image.getHeight(); y++) {
+			image.getRGB(0, y, row.length, 1, row, 0, row.length);
+			result.setRGB(0, y, row.length, 1, row, 0, row.length);
+		}
+		return result;
 	}
 }
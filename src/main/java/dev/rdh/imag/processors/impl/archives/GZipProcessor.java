@@ -1,13 +1,64 @@
 package dev.rdh.imag.processors.impl.archives;
 
-import dev.rdh.imag.processors.FileProcessor;
+import dev.rdh.imag.processors.BufferFileProcessor;
+import dev.rdh.imag.util.BufferUtils;
+import dev.rdh.imag.util.CpuBudget;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.zip.GZIPInputStream;
 
-public class GZipProcessor implements FileProcessor {
+import org.jetbrains.annotations.NotNull;
+
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class GZipProcessor extends BufferFileProcessor {
+
+	/**
+	 * Data that decompresses to more than this is streamed through a temp file instead of being decompressed in memory.
+	 */
+	static final long IN_MEMORY_LIMIT = 32 << 20;
+
+	private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The block size used for streamed data with a time limit, if no other is given.
+	 */
+	static final int TIMED_BLOCK_SIZE = 8 << 20;
+
+	/**
+	 * The number of Zopfli iterations run unless another is given.
+	 */
+	public static final int DEFAULT_EFFORT = 1000;
+
+	private final int effort;
+	private final long timeout;
+	private final int blockSize;
+	private final File workDir;
+
+	protected GZipProcessor(int effort, long timeout, int blockSize, File workDir) {
+		this.effort = effort;
+		this.timeout = timeout;
+		this.blockSize = blockSize;
+		this.workDir = workDir;
+	}
+
+	/**
+	 * @param effort the number of Zopfli iterations to run. More is smaller, but slower.
+	 * @param timeout how long Zopfli may spend on each file, in milliseconds, before it settles for the best result so far. 0 means no limit.
+	 *                Streamed data is split into blocks for this, since a single stream can't be stopped early.
+	 * @param blockSize if above 0, data is split into blocks of this many bytes which are compressed in parallel. See {@link ParallelGzipOutputStream}.
+	 * @param workDir the directory to put streamed results in.
+	 */
+	public static GZipProcessor newInstance(int effort, long timeout, int blockSize, @NotNull File workDir) {
+		return new GZipProcessor(effort, timeout, blockSize, workDir);
+	}
 
 	@Override
 	public String name() {
@@ -22,20 +73,103 @@ public class GZipProcessor implements FileProcessor {
 	@Override
 	public void process(File file) throws Exception {
 		if(!file.getName().endsWith(extension())) return;
-		try(GZIPInputStream in = new GZIPInputStream(new FileInputStream(file))) {
-			byte[] data = new byte[(int) file.length()];
-			int read = in.read(data);
-			if(read != data.length) throw new IOException("Failed to read all data from file " + file);
 
-			byte[] compressed = compress(data);
+		File output = stream(Files.newInputStream(file.toPath()));
+		try {
+			if(output.length() < file.length()) {
+				Files.move(output.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			output.delete();
+		}
+	}
 
-			if(compressed.length >= data.length) return;
+	@Override
+	public ByteBuffer process(ByteBuffer input) throws Exception {
+		// the last 4 bytes of a gzip file are the uncompressed size (mod 2^32), which can't be more than 1032x the compressed size
+		long uncompressedSize = input.remaining() >= 4 ? input.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(input.limit() - 4) & 0xFFFFFFFFL : 0;
+		uncompressedSize = Math.min(uncompressedSize, input.remaining() * 1032L);
 
-			try(FileOutputStream out = new FileOutputStream(file)) {
-				out.write(compressed);
+		if(uncompressedSize > IN_MEMORY_LIMIT || blockSize > 0 && uncompressedSize > blockSize) {
+			File output = stream(BufferUtils.inputStream(input));
+			try {
+				return output.length() < input.remaining() ? BufferUtils.read(output) : input;
+			} finally {
+				output.delete();
 			}
 		}
+
+		ByteBuffer data;
+		try(InputStream in = new GZIPInputStream(BufferUtils.inputStream(input))) {
+			BufferUtils.DirectOutputStream out = new BufferUtils.DirectOutputStream((int) uncompressedSize);
+			transcode(in, out);
+			data = out.buffer();
+		}
+
+		// only a result smaller than the input is useful, so it never needs more room than that
+		ByteBuffer output = ByteBuffer.allocateDirect(input.remaining());
+		int length;
+		try(CpuBudget.Permit permit = CpuBudget.acquire()) {
+			length = compressDirect(data, data.remaining(), output, effort, timeout);
+		}
+
+		return length < 0 || length >= input.remaining() ? input : output.limit(length);
+	}
+
+	/**
+	 * Decompress a gzip stream and recompress it into a temp file, a chunk or a block at a time.
+	 * @param compressed the gzip data. Closed once it has been read.
+	 * @return the temp file holding the recompressed data.
+	 * @throws IOException if the data could not be decompressed, or the result could not be written.
+	 */
+	protected File stream(InputStream compressed) throws IOException {
+		File output = File.createTempFile("gzip", '.' + extension(), workDir);
+		output.deleteOnExit();
+
+		try(compressed; InputStream in = new GZIPInputStream(new BufferedInputStream(compressed, STREAM_BUFFER_SIZE), STREAM_BUFFER_SIZE)) {
+			if(blockSize > 0 || timeout > 0) {
+				// the blocks take their own permits, so none can be held here while waiting on them
+				int size = blockSize > 0 ? blockSize : TIMED_BLOCK_SIZE;
+				try(OutputStream out = new ParallelGzipOutputStream(new FileOutputStream(output), size, effort, timeout)) {
+					transcode(in, out);
+				}
+				return output;
+			}
+
+			try(CpuBudget.Permit permit = CpuBudget.acquire()) {
+				ZopfliOutputStream out = ZopfliOutputStream.open(output, effort);
+				try {
+					transcode(in, out);
+				} catch(IOException e) {
+					out.abort();
+					throw e;
+				}
+				out.close();
+			}
+		} catch(IOException e) {
+			output.delete();
+			throw e;
+		}
+		return output;
+	}
+
+	/**
+	 * Rewrite the uncompressed data on its way to being compressed again. By default it is copied as it is.
+	 * @param in the uncompressed data.
+	 * @param out where to write the data to compress.
+	 * @throws IOException if the data could not be read or written.
+	 */
+	protected void transcode(InputStream in, OutputStream out) throws IOException {
+		in.transferTo(out);
 	}
 
 	public static native byte[] compress(byte[] data);
+
+	/**
+	 * Gzip the start of {@code src} with Zopfli, writing the result to the start of {@code dst}. Both buffers must be direct.
+	 * <p>With a time limit, Zopfli is run with more and more iterations up to {@code iterations}, and stops early once the next run wouldn't finish in time.</p>
+	 * @param timeoutMillis the time limit in milliseconds, or 0 for none.
+	 * @return the length of the result, or {@code -1} if it doesn't fit in {@code dst}.
+	 */
+	public static native int compressDirect(ByteBuffer src, int length, ByteBuffer dst, int iterations, long timeoutMillis);
 }
@@ -0,0 +1,28 @@
+package dev.rdh.imag.processors.impl.archives;
+
+import dev.rdh.imag.Optimizer;
+
+public class JarProcessor extends ZipProcessor {
+	private JarProcessor(Optimizer optimizer, int effort, long timeout) {
+		super(optimizer, effort, timeout);
+	}
+
+	/**
+	 * @param optimizer the optimizer to run the files inside archives through.
+	 * @param effort the number of Zopfli iterations to run on each entry.
+	 * @param timeout how long Zopfli may spend on each entry, in milliseconds. 0 means no limit.
+	 */
+	public static JarProcessor newInstance(Optimizer optimizer, int effort, long timeout) {
+		return new JarProcessor(optimizer, effort, timeout);
+	}
+
+	@Override
+	public String name() {
+		return "Jar";
+	}
+
+	@Override
+	public String extension() {
+		return "jar";
+	}
+}
@@ -0,0 +1,127 @@
+package dev.rdh.imag.processors.impl.archives;
+
+import dev.rdh.imag.util.CpuBudget;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * An output stream that splits everything written to it into blocks and gzips them with Zopfli in parallel, like pigz.
+ * <p>Each block becomes its own gzip member, and the members are written to the sink in order. A gzip file made of several members is still a valid gzip file, and decompresses to all of the blocks one after another. Blocks can't refer back to each other, so the result is a little larger than compressing everything at once.</p>
+ * <p>Only a few blocks are kept waiting at a time, so memory use is bounded by the block size rather than the size of the data.</p>
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+	private final WritableByteChannel sink;
+	private final int blockSize;
+	private final int iterations;
+	private final long timeout;
+	private final long deadline;
+	private final int maxPending = CpuBudget.size() + 1;
+	private final Queue<ForkJoinTask<ByteBuffer>> pending = new ArrayDeque<>();
+
+	private ByteBuffer block;
+	private boolean empty = true;
+	private boolean closed = false;
+
+	/**
+	 * @param sink where to write the gzip members. Closed when this stream is.
+	 * @param blockSize how much data goes into each block, in bytes.
+	 * @param iterations the number of Zopfli iterations to run on each block.
+	 * @param timeout how long all the blocks together may take, in milliseconds, or 0 for no limit.
+	 */
+	public ParallelGzipOutputStream(OutputStream sink, int blockSize, int iterations, long timeout) {
+		this.sink = Channels.newChannel(sink);
+		this.blockSize = blockSize;
+		this.iterations = iterations;
+		this.timeout = timeout;
+		this.deadline = System.currentTimeMillis() + timeout;
+		this.block = ByteBuffer.allocateDirect(blockSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if(!block.hasRemaining()) submit();
+		block.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while(len > 0) {
+			if(!block.hasRemaining()) submit();
+			int count = Math.min(len, block.remaining());
+			block.put(b, off, count);
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+
+		try {
+			// an empty stream still needs one member to be valid gzip
+			if(block.position() > 0 || empty) submit();
+			while(!pending.isEmpty()) {
+				writeOut(pending.poll());
+			}
+		} finally {
+			for(ForkJoinTask<ByteBuffer> task : pending) {
+				task.cancel(false);
+			}
+			sink.close();
+		}
+	}
+
+	private void submit() throws IOException {
+		ByteBuffer data = block.flip();
+		block = ByteBuffer.allocateDirect(blockSize);
+		empty = false;
+
+		pending.add(ForkJoinTask.adapt(() -> compress(data)).fork());
+		while(pending.size() > maxPending) {
+			writeOut(pending.poll());
+		}
+	}
+
+	private void writeOut(ForkJoinTask<ByteBuffer> task) throws IOException {
+		ByteBuffer member;
+		try {
+			member = task.join();
+		} catch(RuntimeException e) {
+			throw new IOException("Failed to compress block", e);
+		}
+
+		while(member.hasRemaining()) {
+			sink.write(member);
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if(closed) throw new IOException("Stream closed");
+	}
+
+	/**
+	 * Gzip one block into its own member.
+	 */
+	private ByteBuffer compress(ByteBuffer data) throws IOException {
+		// incompressible data ends up in stored blocks, which add 5 bytes per 64K, plus the gzip header and trailer
+		ByteBuffer output = ByteBuffer.allocateDirect(data.remaining() + (data.remaining() >> 12) + 128);
+		int length;
+		try(CpuBudget.Permit permit = CpuBudget.acquire()) {
+			// blocks that start after the deadline get the smallest time limit, which is a single iteration
+			long remaining = timeout == 0 ? 0 : Math.max(1, deadline - System.currentTimeMillis());
+			length = GZipProcessor.compressDirect(data, data.remaining(), output, iterations, remaining);
+		}
+		if(length < 0) throw new IOException("Compressed block did not fit in its buffer");
+		return output.limit(length);
+	}
+}
@@ -0,0 +1,390 @@
+package dev.rdh.imag.processors.impl.archives;
+
+import dev.rdh.imag.Main;
+import dev.rdh.imag.Optimizer;
+import dev.rdh.imag.processors.FileProcessor;
+import dev.rdh.imag.processors.Pipeline;
+import dev.rdh.imag.util.BufferUtils;
+import dev.rdh.imag.util.CpuBudget;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Optimizes the files inside zip archives, then recompresses every entry with Zopfli.
+ * <p>Entries are read straight out of the archive and run through an {@link Optimizer}'s processors, several at once.
+ * The archive is then rewritten with each entry deflated by Zopfli, or stored if that is smaller.
+ * The attributes of each entry, like unix permissions, are copied from the original central directory.</p>
+ * <p>Entries of signed archives are only recompressed, since changing their contents would break the signature.
+ * Zip64 archives, and entries too large to hold in memory, are left alone.</p>
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class ZipProcessor implements FileProcessor {
+
+	/**
+	 * The number of Zopfli iterations run on each entry unless another is given.
+	 */
+	public static final int DEFAULT_EFFORT = 15;
+
+	private static final Pattern SIGNATURE = Pattern.compile("(?i)META-INF/[^/]+\\.(?:SF|RSA|DSA|EC)");
+
+	private static final long MAX_32 = 0xFFFFFFFFL;
+
+	private final Optimizer optimizer;
+	private final int effort;
+	private final long timeout;
+
+	protected ZipProcessor(Optimizer optimizer, int effort, long timeout) {
+		this.optimizer = optimizer;
+		this.effort = effort;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param optimizer the optimizer to run the files inside archives through.
+	 * @param effort the number of Zopfli iterations to run on each entry.
+	 * @param timeout how long Zopfli may spend on each entry, in milliseconds, before it settles for the best result so far. 0 means no limit.
+	 */
+	public static ZipProcessor newInstance(Optimizer optimizer, int effort, long timeout) {
+		return new ZipProcessor(optimizer, effort, timeout);
+	}
+
+	@Override
+	public String name() {
+		return "Zip";
+	}
+
+	@Override
+	public String extension() {
+		return "zip";
+	}
+
+	@Override
+	public void process(File file) throws Exception {
+		File output = File.createTempFile("imag-", ".zip", optimizer.workDir());
+		try {
+			try(ZipFile zip = new ZipFile(file)) {
+				List<? extends ZipEntry> entries = Collections.list(zip.entries());
+				if(entries.size() >= 0xFFFF) return;
+
+				boolean signed = false;
+				for(ZipEntry entry : entries) {
+					if(entry.getSize() > Pipeline.MAX_BUFFERED || entry.getCompressedSize() >= MAX_32) return;
+					signed |= SIGNATURE.matcher(entry.getName()).matches();
+				}
+
+				rewrite(zip, entries, !signed, attributes(file), output);
+			}
+
+			if(output.length() < file.length()) {
+				Files.move(output.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			output.delete();
+		}
+	}
+
+	/**
+	 * Write a new archive with every entry recompressed.
+	 * <p>Entries are prepared in parallel, but at most a few more than there are cpus are held in memory at once.</p>
+	 */
+	private void rewrite(ZipFile zip, List<? extends ZipEntry> entries, boolean optimize, Map<String, Attributes> attributes, File output) throws IOException {
+		Deque<ForkJoinTask<Entry>> pending = new ArrayDeque<>();
+		try(ZipWriter writer = new ZipWriter(output)) {
+			for(int i = 0; i < entries.size(); i++) {
+				ZipEntry entry = entries.get(i);
+				// temp files keep the entry's name, so processors see the right extension
+				String tempName = output.getName() + "-" + i + "-" + new File(entry.getName()).getName();
+				Attributes attrs = attributes.getOrDefault(entry.getName(), Attributes.DEFAULT);
+				pending.add(ForkJoinTask.adapt(() -> prepare(zip, entry, optimize, attrs, tempName)).fork());
+				if(pending.size() > CpuBudget.size() * 2) {
+					writer.write(pending.poll().join());
+				}
+			}
+			while(!pending.isEmpty()) {
+				writer.write(pending.poll().join());
+			}
+			writer.finish(zip.getComment());
+		} finally {
+			for(ForkJoinTask<Entry> task : pending) {
+				task.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Read an entry, optimize it if any processor handles its type, and compress it.
+	 */
+	private Entry prepare(ZipFile zip, ZipEntry entry, boolean optimize, Attributes attributes, String tempName) throws IOException {
+		ByteBuffer data;
+		try(InputStream in = zip.getInputStream(entry)) {
+			data = BufferUtils.readFully(in, (int) Math.max(entry.getSize(), 0));
+		}
+
+		String name = entry.getName();
+		if(optimize && !entry.isDirectory() && !optimizer.chain(name).isEmpty()) {
+			String path = zip.getName() + "!/" + name;
+			try(Pipeline pipeline = Pipeline.of(data, new File(optimizer.workDir(), tempName))) {
+				for(Optimizer.Step step : optimizer.run(pipeline, name, 0).errors()) {
+					Main.LOGGER.error("Failed to run " + step.processor() + " on " + path, step.error());
+				}
+				if(pipeline.size() < data.remaining()) {
+					data = pipeline.buffer();
+				}
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+
+		ByteBuffer compressed = null;
+		if(data.remaining() > 0) {
+			ByteBuffer input = BufferUtils.direct(data);
+			ByteBuffer output = ByteBuffer.allocateDirect(input.remaining());
+			int length;
+			try(CpuBudget.Permit permit = CpuBudget.acquire()) {
+				length = deflateDirect(input, input.remaining(), output, effort, timeout);
+			}
+			if(length >= 0 && length < data.remaining()) {
+				compressed = output.limit(length);
+			}
+		}
+
+		return new Entry(entry, attributes, crc.getValue(), data.remaining(), compressed != null ? compressed : data, compressed != null);
+	}
+
+	/**
+	 * An entry ready to be written.
+	 */
+	private record Entry(ZipEntry entry, Attributes attributes, long crc, long size, ByteBuffer data, boolean deflated) { }
+
+	/**
+	 * The parts of a central directory record that {@link ZipEntry} doesn't expose.
+	 *
+	 * @param madeBy the version and system that made the entry. The system, in the high byte, says how to read the external attributes.
+	 * @param external the external attributes, like unix permissions in the high 16 bits.
+	 */
+	private record Attributes(int madeBy, int external) {
+		static final Attributes DEFAULT = new Attributes(20, 0);
+	}
+
+	/**
+	 * Read the attributes of every entry from an archive's central directory.
+	 * @return the attributes of each entry by name. Empty if the central directory could not be found.
+	 */
+	private static Map<String, Attributes> attributes(File file) throws IOException {
+		Map<String, Attributes> result = new HashMap<>();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// the end of central directory record is in the last 22 bytes, plus up to 64K of comment
+			long size = channel.size();
+			int tailLength = (int) Math.min(size, 22 + 0xFFFF);
+			ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(tail, size - tailLength);
+			tail.flip();
+
+			int end = -1;
+			for(int i = tail.limit() - 22; i >= 0; i--) {
+				if(tail.getInt(i) == 0x06054b50) {
+					end = i;
+					break;
+				}
+			}
+			if(end < 0) return result;
+
+			long cdSize = tail.getInt(end + 12) & MAX_32;
+			long cdOffset = tail.getInt(end + 16) & MAX_32;
+			if(cdOffset + cdSize > size || cdSize > Integer.MAX_VALUE) return result;
+
+			ByteBuffer cd = ByteBuffer.allocate((int) cdSize).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(cd, cdOffset);
+			cd.flip();
+
+			while(cd.remaining() >= 46 && cd.getInt(cd.position()) == 0x02014b50) {
+				int p = cd.position();
+				int nameLength = cd.getShort(p + 28) & 0xFFFF;
+				int extraLength = cd.getShort(p + 30) & 0xFFFF;
+				int commentLength = cd.getShort(p + 32) & 0xFFFF;
+				if(cd.remaining() < 46 + nameLength + extraLength + commentLength) break;
+
+				String name = StandardCharsets.UTF_8.decode(cd.slice(p + 46, nameLength)).toString();
+				result.putIfAbsent(name, new Attributes(cd.getShort(p + 4) & 0xFFFF, cd.getInt(p + 38)));
+				cd.position(p + 46 + nameLength + extraLength + commentLength);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the headers and data of a zip archive, then its central directory.
+	 */
+	private static class ZipWriter implements AutoCloseable {
+		private final FileChannel channel;
+		private ByteBuffer centralDirectory = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		private int count = 0;
+
+		ZipWriter(File file) throws IOException {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		void write(Entry e) throws IOException {
+			long offset = channel.position();
+			if(offset >= MAX_32) throw new IOException("Archive is too large to write without zip64");
+
+			byte[] name = e.entry().getName().getBytes(StandardCharsets.UTF_8);
+			byte[] extra = stripZip64(e.entry().getExtra());
+			byte[] comment = e.entry().getComment() == null ? new byte[0] : e.entry().getComment().getBytes(StandardCharsets.UTF_8);
+			int method = e.deflated() ? ZipEntry.DEFLATED : ZipEntry.STORED;
+			int version = e.deflated() ? 20 : 10;
+			int time = dosTime(e.entry().getTime());
+
+			ByteBuffer header = ByteBuffer.allocate(30 + name.length + extra.length).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(0x04034b50)
+					.putShort((short) version)
+					.putShort((short) 0x0800) // names are utf-8
+					.putShort((short) method)
+					.putInt(time)
+					.putInt((int) e.crc())
+					.putInt(e.data().remaining())
+					.putInt((int) e.size())
+					.putShort((short) name.length)
+					.putShort((short) extra.length)
+					.put(name)
+					.put(extra)
+					.flip();
+			writeFully(header);
+			writeFully(e.data().duplicate());
+
+			// the system that made the entry is kept, so its external attributes still mean the same thing
+			int madeBy = (e.attributes().madeBy() & 0xFF00) | Math.max(e.attributes().madeBy() & 0xFF, version);
+
+			ByteBuffer central = ByteBuffer.allocate(46 + name.length + extra.length + comment.length).order(ByteOrder.LITTLE_ENDIAN);
+			central.putInt(0x02014b50)
+					.putShort((short) madeBy)
+					.putShort((short) version)
+					.putShort((short) 0x0800)
+					.putShort((short) method)
+					.putInt(time)
+					.putInt((int) e.crc())
+					.putInt(e.data().remaining())
+					.putInt((int) e.size())
+					.putShort((short) name.length)
+					.putShort((short) extra.length)
+					.putShort((short) comment.length)
+					.putShort((short) 0) // disk number
+					.putShort((short) 0) // internal attributes
+					.putInt(e.attributes().external())
+					.putInt((int) offset)
+					.put(name)
+					.put(extra)
+					.put(comment)
+					.flip();
+			appendCentral(central);
+			count++;
+		}
+
+		void finish(String comment) throws IOException {
+			byte[] bytes = comment == null ? new byte[0] : comment.getBytes(StandardCharsets.UTF_8);
+			long offset = channel.position();
+			if(offset >= MAX_32) throw new IOException("Archive is too large to write without zip64");
+
+			centralDirectory.flip();
+			int size = centralDirectory.remaining();
+			writeFully(centralDirectory);
+
+			ByteBuffer end = ByteBuffer.allocate(22 + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+			end.putInt(0x06054b50)
+					.putShort((short) 0)
+					.putShort((short) 0)
+					.putShort((short) count)
+					.putShort((short) count)
+					.putInt(size)
+					.putInt((int) offset)
+					.putShort((short) bytes.length)
+					.put(bytes)
+					.flip();
+			writeFully(end);
+		}
+
+		private void appendCentral(ByteBuffer record) {
+			if(centralDirectory.remaining() < record.remaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(centralDirectory.capacity() * 2, centralDirectory.position() + record.remaining())).order(ByteOrder.LITTLE_ENDIAN);
+				centralDirectory = bigger.put(centralDirectory.flip());
+			}
+			centralDirectory.put(record);
+		}
+
+		private void writeFully(ByteBuffer buffer) throws IOException {
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Remove the zip64 field from an entry's extra data, since sizes are always written in 32 bits.
+	 */
+	private static byte[] stripZip64(byte[] extra) {
+		if(extra == null) return new byte[0];
+
+		ByteBuffer in = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer out = ByteBuffer.allocate(extra.length);
+		while(in.remaining() >= 4) {
+			int id = in.getShort(in.position()) & 0xFFFF;
+			int length = in.getShort(in.position() + 2) & 0xFFFF;
+			if(in.remaining() < 4 + length) break;
+			ByteBuffer field = in.slice(in.position(), 4 + length);
+			in.position(in.position() + 4 + length);
+			if(id != 0x0001) out.put(field);
+		}
+		return BufferUtils.toArray(out.flip());
+	}
+
+	/**
+	 * Convert a time to the MS-DOS format zip headers use, with the date in the high 16 bits.
+	 */
+	private static int dosTime(long millis) {
+		LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(Math.max(millis, 0)), ZoneId.systemDefault());
+		if(time.getYear() < 1980) return (1 << 21) | (1 << 16);
+
+		return (time.getYear() - 1980) << 25
+				| time.getMonthValue() << 21
+				| time.getDayOfMonth() << 16
+				| time.getHour() << 11
+				| time.getMinute() << 5
+				| time.getSecond() >> 1;
+	}
+
+	/**
+	 * Raw-deflate the start of {@code src} with Zopfli, writing the result to the start of {@code dst}. Both buffers must be direct.
+	 * @param timeoutMillis the time limit in milliseconds, or 0 for none.
+	 * @return the length of the result, or {@code -1} if it doesn't fit in {@code dst}.
+	 */
+	static native int deflateDirect(ByteBuffer src, int length, ByteBuffer dst, int iterations, long timeoutMillis);
+}
@@ -0,0 +1,100 @@
+package dev.rdh.imag.processors.impl.archives;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An output stream that gzips everything written to it with Zopfli, straight into a file.
+ * <p>Data is handed to the native encoder in chunks through a direct buffer, and the encoder only keeps a window of it, so memory use doesn't grow with the size of the data.</p>
+ */
+public class ZopfliOutputStream extends OutputStream {
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+	private long handle;
+
+	private ZopfliOutputStream(long handle) {
+		this.handle = handle;
+	}
+
+	/**
+	 * Start gzipping into a file, replacing it if it exists.
+	 *
+	 * @param file the file to write to.
+	 * @param iterations the number of Zopfli iterations to run.
+	 * @return the stream.
+	 * @throws IOException if the file could not be opened.
+	 */
+	public static ZopfliOutputStream open(File file, int iterations) throws IOException {
+		return new ZopfliOutputStream(nativeOpen(file.getAbsolutePath(), iterations));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if(!buffer.hasRemaining()) drain();
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while(len > 0) {
+			if(!buffer.hasRemaining()) drain();
+			int count = Math.min(len, buffer.remaining());
+			buffer.put(b, off, count);
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Finish the gzip stream and close the file.
+	 *
+	 * @throws IOException if the rest of the data could not be compressed or written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(handle == 0) return;
+		try {
+			drain();
+		} catch(IOException e) {
+			abort();
+			throw e;
+		}
+
+		long h = handle;
+		handle = 0;
+		nativeFinish(h);
+	}
+
+	/**
+	 * Close the file without finishing the gzip stream, leaving it incomplete.
+	 */
+	public void abort() {
+		if(handle == 0) return;
+		long h = handle;
+		handle = 0;
+		nativeAbort(h);
+	}
+
+	private void drain() throws IOException {
+		if(buffer.position() == 0) return;
+		nativeWrite(handle, buffer, buffer.position());
+		buffer.clear();
+	}
+
+	private void ensureOpen() throws IOException {
+		if(handle == 0) throw new IOException("Stream closed");
+	}
+
+	private static native long nativeOpen(String path, int iterations) throws IOException;
+
+	private static native void nativeWrite(long handle, ByteBuffer data, int length) throws IOException;
+
+	private static native void nativeFinish(long handle) throws IOException;
+
+	private static native void nativeAbort(long handle);
+}
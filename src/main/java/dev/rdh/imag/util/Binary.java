@@ -51,6 +51,8 @@ public enum Binary {
 			os = WINDOWS;
 		} else if(a.contains("mac")) {
 			os = MAC;
+		} else if(a.contains("linux")) {
+			os = LINUX;
 		} else {
 			os = OTHER;
 		}
@@ -119,7 +121,8 @@ public enum Binary {
 
 		if(target.exists()) return target.toPath();
 
-		if(os == OS.OTHER) {
+		// only mac and windows builds of the binaries are bundled, elsewhere they have to be installed
+		if(os != MAC && os != WINDOWS) {
 			return null;
 		}
 
@@ -150,13 +153,14 @@ public enum Binary {
 	}
 
 	enum OS {
-		MAC, WINDOWS, OTHER;
+		MAC, WINDOWS, LINUX, OTHER;
 
 		@Override
 		public String toString() {
 			return switch(this) {
 				case MAC -> "mac";
 				case WINDOWS -> "win";
+				case LINUX -> "linux";
 				default -> "other";
 			};
 		}
@@ -0,0 +1,169 @@
+package dev.rdh.imag.util;
+
+import dev.rdh.imag.Main;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Remembers which PNGOUT block size won on which kinds of image, so that only the likeliest few need to be tried.
+ * <p>Images are put in buckets by file size and pixel count. Until a bucket has a history, block sizes close to a fraction of the file size are preferred.
+ * One in {@link #EXPLORE_RATE} images still gets every block size, so that the history doesn't only ever confirm itself.</p>
+ * <p>The history is stored as {@code <bucket> <block size> <wins>} lines, and rewritten at the end of each run.</p>
+ */
+public class BlockSizeHistory {
+	/**
+	 * Every block size PNGOUT is run with in a full sweep.
+	 */
+	public static final int[] BLOCK_SIZES = { 0, 128, 192, 256, 512, 1024, 2048, 4096, 8192 };
+
+	/**
+	 * One in this many images is run with every block size.
+	 */
+	static final int EXPLORE_RATE = 16;
+
+	private final File file;
+	private final Map<String, AtomicLongArray> wins = new ConcurrentHashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+
+	private BlockSizeHistory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Load the history kept in imag's own directory, which carries over between runs.
+	 *
+	 * @return the history.
+	 */
+	public static BlockSizeHistory load() {
+		return load(new File(Main.MAINDIR, "pngout-history"));
+	}
+
+	/**
+	 * Load the history stored in a file, starting empty if it does not exist.
+	 *
+	 * @param file the file the history is stored in.
+	 * @return the history.
+	 */
+	public static BlockSizeHistory load(@NotNull File file) {
+		BlockSizeHistory history = new BlockSizeHistory(file);
+		if(!file.exists()) return history;
+
+		try {
+			for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				String[] parts = line.split(" ");
+				if(parts.length != 3) continue;
+				int index = indexOf(Integer.parseInt(parts[1]));
+				if(index < 0) continue;
+				history.bucket(parts[0]).addAndGet(index, Long.parseLong(parts[2]));
+			}
+		} catch(IOException | NumberFormatException e) {
+			Main.LOGGER.error("Could not read PNGOUT history, starting with an empty one", e);
+		}
+		return history;
+	}
+
+	/**
+	 * Pick the block sizes to try on an image.
+	 *
+	 * @param size the size of the file, in bytes.
+	 * @param pixels the number of pixels in the image, or {@code -1} if unknown.
+	 * @param count how many block sizes to pick. 0 or less picks all of them.
+	 * @return the block sizes, likeliest first.
+	 */
+	public int[] candidates(long size, long pixels, int count) {
+		if(count <= 0 || count >= BLOCK_SIZES.length || requests.getAndIncrement() % EXPLORE_RATE == 0) {
+			return BLOCK_SIZES.clone();
+		}
+
+		AtomicLongArray bucket = bucket(bucket(size, pixels));
+		List<Integer> order = new ArrayList<>();
+		double[] scores = new double[BLOCK_SIZES.length];
+		for(int i = 0; i < BLOCK_SIZES.length; i++) {
+			order.add(i);
+			// the guess only breaks ties between block sizes that have won equally often
+			scores[i] = bucket.get(i) + prior(size, BLOCK_SIZES[i]);
+		}
+		order.sort(Comparator.<Integer>comparingDouble(i -> scores[i]).reversed());
+
+		int[] result = new int[count];
+		for(int i = 0; i < count; i++) {
+			result[i] = BLOCK_SIZES[order.get(i)];
+		}
+		return result;
+	}
+
+	/**
+	 * Record the block size that gave the smallest result on an image, out of a full sweep of {@link #BLOCK_SIZES}.
+	 * <p>Wins out of only the likeliest candidates shouldn't be recorded, since they can only reinforce the ranking that picked them.</p>
+	 *
+	 * @param size the size of the file, in bytes.
+	 * @param pixels the number of pixels in the image, or {@code -1} if unknown.
+	 * @param blockSize the winning block size.
+	 */
+	public void record(long size, long pixels, int blockSize) {
+		int index = indexOf(blockSize);
+		if(index >= 0) bucket(bucket(size, pixels)).incrementAndGet(index);
+	}
+
+	/**
+	 * Write the history back to its file.
+	 *
+	 * @throws IOException if the file could not be written.
+	 */
+	public void save() throws IOException {
+		file.getParentFile().mkdirs();
+		try(BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			for(Map.Entry<String, AtomicLongArray> entry : wins.entrySet()) {
+				for(int i = 0; i < BLOCK_SIZES.length; i++) {
+					long count = entry.getValue().get(i);
+					if(count == 0) continue;
+					writer.write(entry.getKey() + ' ' + BLOCK_SIZES[i] + ' ' + count);
+					writer.newLine();
+				}
+			}
+		}
+	}
+
+	private AtomicLongArray bucket(String name) {
+		return wins.computeIfAbsent(name, k -> new AtomicLongArray(BLOCK_SIZES.length));
+	}
+
+	/**
+	 * Sort images into buckets by file size and pixel count, each in powers of 4, like {@code s5p8}.
+	 */
+	static String bucket(long size, long pixels) {
+		return "s" + log4(size) + "p" + (pixels > 0 ? log4(pixels) : "?");
+	}
+
+	private static int log4(long value) {
+		return (63 - Long.numberOfLeadingZeros(Math.max(value, 1))) / 2;
+	}
+
+	/**
+	 * Guess how likely a block size is to win, between 0 and 1, from how close it is to an eighth of the file size.
+	 */
+	static double prior(long size, int blockSize) {
+		double target = Math.log(Math.max(size / 8.0, 64)) / Math.log(2);
+		double actual = Math.log(Math.max(blockSize, 64)) / Math.log(2);
+		return 1 / (1 + Math.abs(target - actual));
+	}
+
+	private static int indexOf(int blockSize) {
+		for(int i = 0; i < BLOCK_SIZES.length; i++) {
+			if(BLOCK_SIZES[i] == blockSize) return i;
+		}
+		return -1;
+	}
+}
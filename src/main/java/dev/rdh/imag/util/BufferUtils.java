@@ -0,0 +1,184 @@
+package dev.rdh.imag.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.jetbrains.annotations.NotNull;
+
+public class BufferUtils {
+	private BufferUtils() { }
+
+	/**
+	 * Read the contents of a file into a direct buffer, so it can be handed to native code without copying.
+	 *
+	 * @param file the file to read.
+	 * @return a direct buffer holding the whole file, positioned at its start.
+	 * @throws IOException if the file could not be read, or is too large to fit in a buffer.
+	 */
+	public static ByteBuffer read(@NotNull File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) throw new IOException("File too large to read into memory: " + file);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer) == -1) break;
+			}
+			return buffer.flip();
+		}
+	}
+
+	/**
+	 * Read an input stream to its end into a direct buffer.
+	 *
+	 * @param in the stream to read.
+	 * @param sizeHint the expected number of bytes, used as the starting capacity.
+	 * @return a direct buffer holding everything that was read, positioned at its start.
+	 * @throws IOException if the stream could not be read, or has more data than fits in a buffer.
+	 */
+	public static ByteBuffer readFully(@NotNull InputStream in, int sizeHint) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(sizeHint, 8192));
+		ReadableByteChannel channel = Channels.newChannel(in);
+		while(channel.read(buffer) != -1) {
+			if(buffer.hasRemaining()) continue;
+			if(buffer.capacity() == Integer.MAX_VALUE) throw new IOException("Stream too large to read into memory");
+
+			ByteBuffer bigger = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, buffer.capacity() * 2L));
+			bigger.put(buffer.flip());
+			buffer = bigger;
+		}
+		return buffer.flip();
+	}
+
+	/**
+	 * Get a direct buffer with the remaining contents of a buffer, positioned at its start so native code can read it from its address. The buffer's position is not changed.
+	 * <p>Direct buffers are sliced rather than copied.</p>
+	 *
+	 * @param data the buffer.
+	 * @return a direct buffer with the same contents.
+	 */
+	public static ByteBuffer direct(@NotNull ByteBuffer data) {
+		if(data.isDirect()) {
+			return data.slice();
+		}
+		return ByteBuffer.allocateDirect(data.remaining()).put(data.duplicate()).flip();
+	}
+
+	/**
+	 * Replace the contents of a file with the remaining contents of a buffer. The buffer's position is not changed.
+	 *
+	 * @param data the data to write.
+	 * @param file the file to write to.
+	 * @throws IOException if the file could not be written.
+	 */
+	public static void write(@NotNull ByteBuffer data, @NotNull File file) throws IOException {
+		ByteBuffer buffer = data.duplicate();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Get the remaining contents of a buffer as an array. The buffer's position is not changed.
+	 * <p>If the buffer is backed by an array that holds exactly its contents, that array is returned without copying.</p>
+	 *
+	 * @param data the buffer.
+	 * @return the contents of the buffer.
+	 */
+	public static byte[] toArray(@NotNull ByteBuffer data) {
+		if(data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.remaining() == data.array().length) {
+			return data.array();
+		}
+
+		byte[] array = new byte[data.remaining()];
+		data.duplicate().get(array);
+		return array;
+	}
+
+	/**
+	 * Get an input stream over the remaining contents of a buffer. The buffer's position is not changed.
+	 *
+	 * @param data the buffer.
+	 * @return the input stream.
+	 */
+	public static InputStream inputStream(@NotNull ByteBuffer data) {
+		if(data.hasArray()) {
+			return new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		}
+
+		ByteBuffer buffer = data.duplicate();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if(len == 0) return 0;
+				if(!buffer.hasRemaining()) return -1;
+
+				len = Math.min(len, buffer.remaining());
+				buffer.get(b, off, len);
+				return len;
+			}
+
+			@Override
+			public int available() {
+				return buffer.remaining();
+			}
+		};
+	}
+
+	/**
+	 * An output stream that collects everything written to it in a direct buffer, growing it as needed.
+	 */
+	public static final class DirectOutputStream extends OutputStream {
+		private ByteBuffer buffer;
+
+		/**
+		 * @param sizeHint the expected number of bytes, used as the starting capacity.
+		 */
+		public DirectOutputStream(int sizeHint) {
+			this.buffer = ByteBuffer.allocateDirect(Math.max(sizeHint, 8192));
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			ensure(1);
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ensure(len);
+			buffer.put(b, off, len);
+		}
+
+		private void ensure(int length) throws IOException {
+			if(buffer.remaining() >= length) return;
+
+			long needed = (long) buffer.position() + length;
+			if(needed > Integer.MAX_VALUE) throw new IOException("Stream too large to hold in memory");
+			ByteBuffer bigger = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, Math.max(needed, buffer.capacity() * 2L)));
+			buffer = bigger.put(buffer.flip());
+		}
+
+		/**
+		 * @return everything written so far, positioned at its start.
+		 */
+		public ByteBuffer buffer() {
+			return buffer.duplicate().flip();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package dev.rdh.imag.util;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * A global budget of CPU permits, shared by everything that starts a process or runs native code.
+ * <p>Processors that run native code or start a binary, processors that fan out (like PNGOUT running several block sizes at once), and multithreaded binaries all take their permits from here,
+ * so the total amount of work running at once stays at the number of cores no matter how many files are being worked on. File workers themselves don't take permits, since they spend most of their time waiting on processors that do.</p>
+ * <p>A permit must not be held while waiting on work that needs another permit, or the budget could deadlock.</p>
+ */
+public class CpuBudget {
+	private CpuBudget() { }
+
+	private static int size = Runtime.getRuntime().availableProcessors();
+	private static Semaphore permits = new Semaphore(size, true);
+
+	/**
+	 * Set the number of permits in the budget. Must be called before any permits are taken.
+	 *
+	 * @param cpus the number of permits.
+	 */
+	public static void setSize(int cpus) {
+		size = Math.max(1, cpus);
+		permits = new Semaphore(size, true);
+	}
+
+	/**
+	 * @return the total number of permits in the budget.
+	 */
+	public static int size() {
+		return size;
+	}
+
+	/**
+	 * Work out how many permits one piece of work should take at most, so that it leaves enough for the others running alongside it.
+	 *
+	 * @param workers how many pieces of work can run at once, like the number of file workers.
+	 * @return the fair share of the budget, at least 1.
+	 */
+	public static int share(int workers) {
+		return Math.max(1, size / Math.max(1, workers));
+	}
+
+	/**
+	 * Take a single permit, waiting until one is available.
+	 *
+	 * @return the permit, to be closed once the work is done.
+	 */
+	public static Permit acquire() {
+		return acquire(1, 1);
+	}
+
+	/**
+	 * Take at least {@code min} permits, waiting until they are available, and then as many more as are free up to {@code max}.
+	 *
+	 * @param min the number of permits the work needs.
+	 * @param max the number of permits the work can make use of.
+	 * @return the permits, to be closed once the work is done.
+	 */
+	public static Permit acquire(int min, int max) {
+		Semaphore semaphore = permits;
+		min = Math.min(min, size);
+		semaphore.acquireUninterruptibly(min);
+
+		int count = min;
+		while(count < max && semaphore.tryAcquire()) {
+			count++;
+		}
+		return new Permit(semaphore, count);
+	}
+
+	/**
+	 * A number of permits taken from the budget.
+	 */
+	public static final class Permit implements AutoCloseable {
+		private final Semaphore semaphore;
+		private final int count;
+		private boolean released = false;
+
+		private Permit(Semaphore semaphore, int count) {
+			this.semaphore = semaphore;
+			this.count = count;
+		}
+
+		/**
+		 * @return the number of permits held, which is how many threads the work may use.
+		 */
+		public int count() {
+			return count;
+		}
+
+		/**
+		 * Return the permits to the budget. Does nothing if they were already returned.
+		 */
+		@Override
+		public void close() {
+			synchronized(this) {
+				if(released) return;
+				released = true;
+			}
+			semaphore.release(count);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package dev.rdh.imag.util;
+
+import dev.rdh.imag.Main;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The ways files with the same contents can be found, so that only one of them needs to be optimized.
+ */
+public enum Dedup {
+	/**
+	 * Optimize every file on its own.
+	 */
+	OFF,
+	/**
+	 * Group files with exactly the same bytes.
+	 */
+	BYTES,
+	/**
+	 * Group files with exactly the same bytes, and PNGs that decode to exactly the same pixels.
+	 */
+	PIXELS;
+
+	/**
+	 * Group files with the same contents.
+	 * <p>The smallest file of each group is its representative, since it's the best place to start from.</p>
+	 *
+	 * @param files the files to group.
+	 * @param executor where to hash the files.
+	 * @return the other files in each group, keyed by the group's representative. Files without copies are left out.
+	 */
+	public Map<File, List<File>> group(List<File> files, Executor executor) {
+		if(this == OFF) return Map.of();
+
+		// files of different sizes can't have the same bytes, so only files sharing a size need hashing
+		List<File> candidates = files;
+		if(this == BYTES) {
+			Map<Long, List<File>> bySize = new HashMap<>();
+			for(File file : files) {
+				bySize.computeIfAbsent(file.length(), k -> new ArrayList<>()).add(file);
+			}
+			candidates = new ArrayList<>();
+			for(List<File> same : bySize.values()) {
+				if(same.size() > 1) candidates.addAll(same);
+			}
+		}
+
+		List<CompletableFuture<String>> keys = new ArrayList<>(candidates.size());
+		for(File file : candidates) {
+			keys.add(CompletableFuture.supplyAsync(() -> key(file), executor));
+		}
+
+		Map<String, List<File>> groups = new LinkedHashMap<>();
+		for(int i = 0; i < candidates.size(); i++) {
+			String key = keys.get(i).join();
+			if(key != null) groups.computeIfAbsent(key, k -> new ArrayList<>()).add(candidates.get(i));
+		}
+
+		Map<File, List<File>> result = new LinkedHashMap<>();
+		for(List<File> group : groups.values()) {
+			if(group.size() < 2) continue;
+			group.sort(Comparator.comparingLong(File::length).thenComparing(File::getName));
+			result.put(group.get(0), List.copyOf(group.subList(1, group.size())));
+		}
+		return result;
+	}
+
+	/**
+	 * Get the key a file is grouped by.
+	 *
+	 * @param file the file.
+	 * @return the key, or {@code null} if the file could not be read or decoded.
+	 */
+	public String key(File file) {
+		try {
+			if(this == PIXELS && file.getName().endsWith(".png")) {
+				String pixels = pixelHash(Files.readAllBytes(file.toPath()));
+				if(pixels != null) return pixels;
+			}
+			return "bytes " + FileUtils.hash(file);
+		} catch(IOException | RuntimeException e) {
+			// a file that can't be hashed is just processed on its own, rather than failing the whole run
+			Main.LOGGER.error("Could not hash " + file.getName() + ", not deduplicating it", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Hash the decoded pixels of a PNG.
+	 * <p>Images are hashed by their raw samples along with their size, number of bands and bit depth, since converting them to ARGB can merge different colours.
+	 * Palette images are expanded to the colours of their pixels first, so they match truecolour images with the same pixels.
+	 * The {@code tRNS} chunk of other images isn't part of their samples, so it is hashed as it is.</p>
+	 *
+	 * @param data the PNG file.
+	 * @return the hash, or {@code null} if the image can't be compared by its pixels.
+	 */
+	private static String pixelHash(byte[] data) throws IOException {
+		// only the first frame of an animation is decoded
+		PngInfo info = PngInfo.of(ByteBuffer.wrap(data));
+		if(!info.valid() || info.animated()) return null;
+
+		BufferedImage image = info.image();
+		if(image == null) return null;
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		Raster raster = image.getRaster();
+		ColorModel model = image.getColorModel();
+
+		if(model instanceof IndexColorModel palette) {
+			int bands = palette.hasAlpha() ? 4 : 3;
+			digest.update(ByteBuffer.allocate(16).putInt(width).putInt(height).putInt(bands).putInt(8).array());
+			ByteBuffer row = ByteBuffer.allocate(width * bands * 4);
+			int[] indices = new int[width];
+			for(int y = 0; y < height; y++) {
+				raster.getSamples(0, y, width, 1, 0, indices);
+				row.clear();
+				for(int index : indices) {
+					int argb = palette.getRGB(index);
+					row.putInt(argb >>> 16 & 0xFF).putInt(argb >>> 8 & 0xFF).putInt(argb & 0xFF);
+					if(bands == 4) row.putInt(argb >>> 24);
+				}
+				digest.update(row.array());
+			}
+		} else {
+			int bands = raster.getNumBands();
+			int depth = 0;
+			for(int size : model.getComponentSize()) {
+				depth = Math.max(depth, size);
+			}
+			digest.update(ByteBuffer.allocate(16).putInt(width).putInt(height).putInt(bands).putInt(depth).array());
+			ByteBuffer row = ByteBuffer.allocate(width * bands * 4);
+			int[] samples = new int[width * bands];
+			for(int y = 0; y < height; y++) {
+				raster.getPixels(0, y, width, 1, samples);
+				row.clear();
+				row.asIntBuffer().put(samples);
+				digest.update(row.array());
+			}
+
+			for(PngInfo.Chunk chunk : info.chunks()) {
+				if(chunk.type().equals("tRNS")) digest.update(data, chunk.offset(), chunk.length());
+			}
+		}
+
+		return "pixels " + HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * Get a deduplication mode by name.
+	 *
+	 * @param name the name of the mode, case-insensitive.
+	 * @return the mode, or {@code null} if there is no mode with that name.
+	 */
+	public static Dedup from(String name) {
+		for(Dedup dedup : values()) {
+			if(dedup.name().equalsIgnoreCase(name)) return dedup;
+		}
+		return null;
+	}
+}
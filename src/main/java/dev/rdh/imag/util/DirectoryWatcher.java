@@ -0,0 +1,208 @@
+package dev.rdh.imag.util;
+
+import dev.rdh.imag.Main;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Watches a directory tree for files being created or modified, and hands each one on once it has stopped changing.
+ * <p>A file is only handed on after {@link #QUIET_MS} without events and without its size or modification time changing, so files that are still being written are left alone.
+ * New subdirectories are watched as they appear.</p>
+ * <p>Once a file has been handled, its size and modification time are remembered, and the events caused by the handler writing it back are ignored.</p>
+ */
+public class DirectoryWatcher implements AutoCloseable {
+	/**
+	 * How long a file has to stay the same before it is handed on, in milliseconds.
+	 */
+	static final long QUIET_MS = 1000;
+
+	/**
+	 * The size and modification time of a file.
+	 */
+	private record Stat(long size, long modified) {
+		static Stat of(Path path) {
+			File file = path.toFile();
+			return new Stat(file.length(), file.lastModified());
+		}
+	}
+
+	/**
+	 * A file that has changed, and when it last did.
+	 */
+	private record Pending(long time, Stat stat) { }
+
+	private final Path root;
+	private final Pattern filter;
+	private final WatchService service;
+	private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+
+	private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+	private final Set<Path> busy = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * What each file looked like after it was last handled.
+	 */
+	private final Map<Path, Stat> handled = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "imag watch timer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private DirectoryWatcher(Path root, Pattern filter, WatchService service) {
+		this.root = root;
+		this.filter = filter;
+		this.service = service;
+	}
+
+	/**
+	 * Start watching a directory and everything in it.
+	 *
+	 * @param dir the directory to watch.
+	 * @param filter the pattern the names of files to hand on must match.
+	 * @return the watcher.
+	 * @throws IOException if the directory could not be watched.
+	 */
+	public static DirectoryWatcher create(@NotNull File dir, @NotNull Pattern filter) throws IOException {
+		DirectoryWatcher watcher = new DirectoryWatcher(dir.toPath(), filter, FileSystems.getDefault().newWatchService());
+		watcher.register(watcher.root, false);
+		return watcher;
+	}
+
+	/**
+	 * Hand changed files to a handler until the watcher is closed or the thread is interrupted.
+	 * <p>A file is never handed on again while the future returned for it is still running.</p>
+	 *
+	 * @param handler called with each changed file, returning a future that completes once the file has been dealt with.
+	 */
+	public void run(@NotNull Function<File, CompletableFuture<?>> handler) {
+		timer.scheduleWithFixedDelay(() -> flush(handler), QUIET_MS / 4, QUIET_MS / 4, TimeUnit.MILLISECONDS);
+
+		try {
+			while(true) {
+				WatchKey key = service.take();
+				Path dir = keys.get(key);
+				if(dir != null) {
+					for(WatchEvent<?> event : key.pollEvents()) {
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							Main.LOGGER.warn("Too many changes at once in " + dir + ", some files may have been missed");
+							continue;
+						}
+
+						Path path = dir.resolve((Path) event.context());
+						if(Files.isDirectory(path)) {
+							// files can be written into a new directory before it is registered, so they are looked for too
+							if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE) register(path, true);
+						} else {
+							changed(path);
+						}
+					}
+				}
+				if(!key.reset()) keys.remove(key);
+			}
+		} catch(InterruptedException | ClosedWatchServiceException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * Watch a directory and everything in it.
+	 *
+	 * @param dir the directory.
+	 * @param existing whether files already in it count as changed.
+	 */
+	private void register(Path dir, boolean existing) {
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+					keys.put(d.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), d);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if(existing) changed(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					Main.LOGGER.error("Could not watch " + file, e);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch(IOException e) {
+			Main.LOGGER.error("Could not watch " + dir, e);
+		}
+	}
+
+	private void changed(Path path) {
+		if(!filter.matcher(path.getFileName().toString()).matches()) return;
+		pending.put(path, new Pending(System.currentTimeMillis(), Stat.of(path)));
+	}
+
+	/**
+	 * Hand on every file that has been quiet for long enough.
+	 */
+	private void flush(Function<File, CompletableFuture<?>> handler) {
+		long now = System.currentTimeMillis();
+		for(Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Path, Pending> entry = it.next();
+			Path path = entry.getKey();
+			if(now - entry.getValue().time() < QUIET_MS || busy.contains(path)) continue;
+
+			// still being written
+			Stat stat = Stat.of(path);
+			if(!stat.equals(entry.getValue().stat())) {
+				entry.setValue(new Pending(now, stat));
+				continue;
+			}
+
+			it.remove();
+			if(!Files.isRegularFile(path) || stat.equals(handled.get(path))) continue;
+
+			busy.add(path);
+			handler.apply(path.toFile()).whenComplete((r, e) -> {
+				// the handler's own write-back looks like any other change, so remember what it left behind
+				handled.put(path, Stat.of(path));
+				busy.remove(path);
+			});
+		}
+	}
+
+	/**
+	 * Stop watching.
+	 *
+	 * @throws IOException if the watch service could not be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		timer.shutdownNow();
+		service.close();
+	}
+}
@@ -0,0 +1,78 @@
+package dev.rdh.imag.util;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The orders files can be handed to the workers in.
+ * <p>Ordering by cost schedules the most expensive files first (longest-processing-time-first), so a few big files don't end up running on their own after everything else is done.</p>
+ */
+public enum FileOrder {
+	/**
+	 * Alphabetically by file name.
+	 */
+	NAME,
+	/**
+	 * Largest file size first.
+	 */
+	SIZE,
+	/**
+	 * Largest image first, by the pixel count in the PNG header. Other files are estimated by their size.
+	 */
+	PIXELS,
+	/**
+	 * In the order they are found, starting on each file while the rest of the directory is still being scanned.
+	 */
+	SCAN;
+
+	/**
+	 * Sort a list of files into this order.
+	 *
+	 * @param files the files to sort.
+	 */
+	public void sort(List<File> files) {
+		if(this == SCAN) return;
+		if(this == NAME) {
+			files.sort(Comparator.comparing(File::getName));
+			return;
+		}
+
+		// look up each cost once rather than on every comparison
+		Map<File, Long> costs = new HashMap<>();
+		for(File file : files) {
+			costs.put(file, cost(file));
+		}
+		files.sort(Comparator.<File>comparingLong(costs::get).reversed().thenComparing(File::getName));
+	}
+
+	/**
+	 * Estimate how long a file will take to process.
+	 *
+	 * @param file the file.
+	 * @return the estimated cost, in bytes.
+	 */
+	public long cost(File file) {
+		if(this == PIXELS && file.getName().endsWith(".png")) {
+			long pixels = PngUtils.pixels(file);
+			// 4 bytes per pixel, so that it's comparable to the size of other files
+			if(pixels > 0) return pixels * 4;
+		}
+		return file.length();
+	}
+
+	/**
+	 * Get an order by name.
+	 *
+	 * @param name the name of the order, case-insensitive.
+	 * @return the order, or {@code null} if there is no order with that name.
+	 */
+	public static FileOrder from(String name) {
+		for(FileOrder order : values()) {
+			if(order.name().equalsIgnoreCase(name)) return order;
+		}
+		return null;
+	}
+}
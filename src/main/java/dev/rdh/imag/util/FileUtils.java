@@ -1,14 +1,27 @@
 package dev.rdh.imag.util;
 
+import dev.rdh.imag.Main;
 import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import manifold.util.ReflectUtil;
 
 import org.jetbrains.annotations.NotNull;
@@ -20,36 +33,73 @@ public class FileUtils {
 	/**
 	 * Get all valid files in a directory.
 	 * <p>
-	 * Depending on the program's settings, this will only return files ending in {@code .png}, {@code .nbt}, or {@code .ogg}.
+	 * Depending on the program's settings, this will only return files ending in {@code .png}, {@code .nbt}, {@code .ogg}, or the archive extensions.
 	 *
 	 * @param dir the directory to get files from.
 	 * @param png whether to include png files.
 	 * @param nbt whether to include nbt files.
 	 * @param ogg whether to include ogg files.
-	 * @param archives whether to include zip and gz files.
+	 * @param archives whether to include zip, jar and gz files.
 	 * @return a list of all valid files in the directory.
 	 */
 	public static List<File> getFiles(@NotNull File dir, boolean png, boolean nbt, boolean ogg, boolean archives) {
 		List<File> files = new ArrayList<>();
+		scan(dir, filter(png, nbt, ogg, archives), files::add);
+		return files;
+	}
 
+	/**
+	 * Build the pattern that file names are matched against when scanning.
+	 *
+	 * @param png whether to include png files.
+	 * @param nbt whether to include nbt files.
+	 * @param ogg whether to include ogg files.
+	 * @param archives whether to include zip, jar and gz files.
+	 * @return a pattern matching the names of the files to include.
+	 */
+	public static Pattern filter(boolean png, boolean nbt, boolean ogg, boolean archives) {
 		List<String> extensions = new ArrayList<>();
 		if(png) extensions.add("png");
 		if(nbt) extensions.add("nbt");
 		if(ogg) extensions.add("ogg");
 		if(archives) {
 			extensions.add("zip");
+			extensions.add("jar");
 			extensions.add("gz");
 		}
 
-		@SuppressWarnings("RegExpUnnecessaryNonCapturingGroup") // regex + string concat = ???
-		String filter = "(?i).*\\.(?:" + String.join("|", extensions) + ")";
+		return Pattern.compile("(?i).*\\.(?:" + String.join("|", extensions) + ")");
+	}
 
-		//noinspection DataFlowIssue
-		for(File file : dir.listFiles()) {
-			if(file.isDirectory()) files.addAll(getFiles(file, png, nbt, ogg, archives));
-			else if(file.getName().matches(filter)) files.add(file);
+	/**
+	 * Walk a directory tree, handing each matching file to a consumer as soon as it is found.
+	 * <p>Symbolic links are followed. Directories that can't be read are logged and skipped.</p>
+	 *
+	 * @param dir the directory to scan.
+	 * @param filter the pattern file names must match.
+	 * @param consumer called on the scanning thread with each matching file.
+	 */
+	public static void scan(@NotNull File dir, @NotNull Pattern filter, @NotNull Consumer<File> consumer) {
+		Matcher matcher = filter.matcher("");
+		try {
+			Files.walkFileTree(dir.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if(attrs.isRegularFile() && matcher.reset(file.getFileName().toString()).matches()) {
+						consumer.accept(file.toFile());
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					Main.LOGGER.error("Could not scan " + file, e);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch(IOException e) {
+			Main.LOGGER.error("Could not scan " + dir, e);
 		}
-		return files;
 	}
 
 	/**
@@ -83,6 +133,31 @@ public class FileUtils {
 		return sum;
 	}
 
+	/**
+	 * Hash the contents of a file.
+	 *
+	 * @param file the file to hash.
+	 * @return the SHA-256 hash of the file's contents, as a hex string.
+	 * @throws IOException if the file could not be read.
+	 */
+	public static String hash(@NotNull File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		try(InputStream in = Files.newInputStream(file.toPath())) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
 	/**
 	 * Get an input stream from a URL.
 	 *
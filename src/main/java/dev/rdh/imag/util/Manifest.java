@@ -0,0 +1,153 @@
+package dev.rdh.imag.util;
+
+import dev.rdh.imag.Main;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Records the size and modification time of every file a run has optimized, so the next run can skip the ones that haven't changed since.
+ * <p>Whether a file has changed is decided from its metadata alone, without reading it. The manifest lives in the input directory as {@value #NAME},
+ * and starts with the settings it was written with, so changing them makes every file count as changed.</p>
+ * <p>Each entry is stored as a {@code <state> <size> <modified> <path>} line, with the path relative to the input directory.</p>
+ */
+public class Manifest {
+	/**
+	 * The name of the manifest file.
+	 */
+	public static final String NAME = ".imag-manifest";
+
+	private static final String HEADER = "imag-manifest ";
+
+	/**
+	 * What happened to a file the last time it was processed.
+	 */
+	public enum State {
+		/**
+		 * The file was processed, and doesn't need to be again until it changes.
+		 */
+		OPTIMIZED,
+		/**
+		 * The file could not be processed, and is tried again on the next run.
+		 */
+		FAILED
+	}
+
+	private record Entry(State state, long size, long modified) { }
+
+	private final File file;
+	private final Path root;
+	private final String settings;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * The files found in this run, so that entries for deleted files are dropped on save.
+	 */
+	private final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Whether this run looks at every file in the directory. If not, files that weren't found may just not have been looked for, and are kept.
+	 */
+	private final boolean complete;
+
+	private Manifest(File file, Path root, String settings, boolean complete) {
+		this.file = file;
+		this.root = root;
+		this.settings = settings;
+		this.complete = complete;
+	}
+
+	/**
+	 * Load the manifest for an input, starting empty if there is none or it was written with different settings.
+	 *
+	 * @param input the directory or file being optimized. A file shares the manifest of the directory it is in.
+	 * @param settings everything that decides what a run does to a file, like the processors and their effort.
+	 * @return the manifest.
+	 */
+	public static Manifest load(@NotNull File input, @NotNull String settings) {
+		boolean complete = input.isDirectory();
+		File dir = complete ? input.getAbsoluteFile() : input.getAbsoluteFile().getParentFile();
+		Manifest manifest = new Manifest(new File(dir, NAME), dir.toPath(), settings, complete);
+		if(!manifest.file.exists()) return manifest;
+
+		try(BufferedReader reader = Files.newBufferedReader(manifest.file.toPath(), StandardCharsets.UTF_8)) {
+			String header = reader.readLine();
+			if(header == null || !header.equals(HEADER + settings)) {
+				Main.LOGGER.info("Settings changed since the manifest was written, processing every file");
+				return manifest;
+			}
+
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ", 4);
+				if(parts.length != 4) continue;
+				manifest.entries.put(parts[3], new Entry(State.valueOf(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+			}
+		} catch(IOException | IllegalArgumentException e) {
+			Main.LOGGER.error("Could not read manifest, processing every file", e);
+			manifest.entries.clear();
+		}
+		return manifest;
+	}
+
+	/**
+	 * Check whether a file needs processing: if it is new, has a different size or modification time than when it was last optimized, or failed last time.
+	 *
+	 * @param file the file.
+	 * @return whether the file has changed.
+	 */
+	public boolean changed(@NotNull File file) {
+		String path = path(file);
+		seen.add(path);
+
+		Entry entry = entries.get(path);
+		return entry == null || entry.state() != State.OPTIMIZED || entry.size() != file.length() || entry.modified() != file.lastModified();
+	}
+
+	/**
+	 * Record what happened to a file in this run, along with its size and modification time now.
+	 *
+	 * @param file the file.
+	 * @param state what happened to it.
+	 */
+	public void record(@NotNull File file, @NotNull State state) {
+		String path = path(file);
+		seen.add(path);
+		entries.put(path, new Entry(state, file.length(), file.lastModified()));
+	}
+
+	/**
+	 * Write the manifest back to its file. If the whole directory was looked at, files that weren't found in this run are left out.
+	 *
+	 * @throws IOException if the file could not be written.
+	 */
+	public void save() throws IOException {
+		// written to a temporary file first, so an interrupted run can't leave half a manifest behind
+		File temp = new File(file.getParentFile(), NAME + ".tmp");
+		try(BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(HEADER + settings);
+			writer.newLine();
+			for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+				if(complete && !seen.contains(entry.getKey())) continue;
+				Entry e = entry.getValue();
+				writer.write(e.state().name() + ' ' + e.size() + ' ' + e.modified() + ' ' + entry.getKey());
+				writer.newLine();
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private String path(File file) {
+		return root.relativize(file.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+	}
+}
@@ -0,0 +1,225 @@
+package dev.rdh.imag.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rewrites uncompressed NBT in a canonical form that compresses better, without changing what it means.
+ * <p>The entries of every compound are sorted by name, so compounds with the same keys always lay them out the same way, and empty lists get the end tag as their element type.
+ * Everything else, down to the exact bits of floats, is copied as it is.</p>
+ * <p>The data is streamed rather than parsed into a tree. Each compound only buffers its entries until they pass {@link #SORT_LIMIT} bytes,
+ * then sorts what it has, writes it out and passes the rest through in order, so memory use depends on how deep the data is nested rather than how large it is.</p>
+ */
+public final class NbtCanonicalizer {
+	/**
+	 * How many bytes of entries a compound buffers to sort them.
+	 */
+	static final int SORT_LIMIT = 1 << 20;
+
+	/**
+	 * The deepest nesting Minecraft will read.
+	 */
+	static final int MAX_DEPTH = 512;
+
+	private static final int END = 0, BYTE = 1, SHORT = 2, INT = 3, LONG = 4, FLOAT = 5, DOUBLE = 6,
+			BYTE_ARRAY = 7, STRING = 8, LIST = 9, COMPOUND = 10, INT_ARRAY = 11, LONG_ARRAY = 12;
+
+	private NbtCanonicalizer() {}
+
+	/**
+	 * Canonicalize a stream of big-endian NBT, as used by Java Edition.
+	 * <p>Anything after the root tag is copied as it is.</p>
+	 *
+	 * @param in the uncompressed NBT. Not closed.
+	 * @param out where to write the canonical NBT. Flushed, but not closed.
+	 * @throws IOException if the data is not valid NBT, or could not be read or written.
+	 */
+	public static void transcode(InputStream in, OutputStream out) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+		BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+		DataOutputStream output = new DataOutputStream(buffered);
+
+		int type = input.read();
+		if(type > END) {
+			output.writeByte(type);
+			byte[] name = readName(input);
+			output.writeShort(name.length);
+			output.write(name);
+			payload(type, input, output, 0);
+		} else if(type == END) {
+			output.writeByte(type);
+		}
+
+		input.transferTo(output);
+		output.flush();
+	}
+
+	private static void payload(int type, DataInputStream in, DataOutputStream out, int depth) throws IOException {
+		if(depth > MAX_DEPTH) throw new IOException("NBT is nested too deeply");
+
+		switch(type) {
+			case BYTE -> out.writeByte(in.readByte());
+			case SHORT -> out.writeShort(in.readShort());
+			case INT, FLOAT -> out.writeInt(in.readInt());
+			case LONG, DOUBLE -> out.writeLong(in.readLong());
+			case BYTE_ARRAY -> array(in, out, 1);
+			case STRING -> {
+				int length = in.readUnsignedShort();
+				out.writeShort(length);
+				copy(in, out, length);
+			}
+			case LIST -> list(in, out, depth);
+			case COMPOUND -> compound(in, out, depth);
+			case INT_ARRAY -> array(in, out, 4);
+			case LONG_ARRAY -> array(in, out, 8);
+			default -> throw new IOException("Unknown NBT tag type " + type);
+		}
+	}
+
+	private static void array(DataInputStream in, DataOutputStream out, int size) throws IOException {
+		int length = in.readInt();
+		if(length < 0) throw new IOException("Negative NBT array length");
+		out.writeInt(length);
+		copy(in, out, (long) length * size);
+	}
+
+	private static void list(DataInputStream in, DataOutputStream out, int depth) throws IOException {
+		int type = in.readUnsignedByte();
+		int length = in.readInt();
+		if(length < 0) throw new IOException("Negative NBT list length");
+
+		// the element type of an empty list doesn't matter, so they're all written the same way
+		if(length == 0) {
+			out.writeByte(END);
+			out.writeInt(0);
+			return;
+		}
+		if(type == END) throw new IOException("NBT list of end tags");
+
+		out.writeByte(type);
+		out.writeInt(length);
+		for(int i = 0; i < length; i++) {
+			payload(type, in, out, depth + 1);
+		}
+	}
+
+	private static void compound(DataInputStream in, DataOutputStream out, int depth) throws IOException {
+		CompoundSink sink = new CompoundSink(out);
+		DataOutputStream entry = new DataOutputStream(sink);
+		while(true) {
+			int type = in.readUnsignedByte();
+			if(type == END) break;
+
+			byte[] name = readName(in);
+			sink.begin(name);
+			entry.writeByte(type);
+			entry.writeShort(name.length);
+			entry.write(name);
+			payload(type, in, entry, depth + 1);
+			sink.end();
+		}
+		sink.finish();
+		out.writeByte(END);
+	}
+
+	private static byte[] readName(DataInputStream in) throws IOException {
+		byte[] name = new byte[in.readUnsignedShort()];
+		in.readFully(name);
+		return name;
+	}
+
+	private static void copy(DataInputStream in, OutputStream out, long length) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(length, 8192)];
+		while(length > 0) {
+			int read = (int) Math.min(length, buffer.length);
+			in.readFully(buffer, 0, read);
+			out.write(buffer, 0, read);
+			length -= read;
+		}
+	}
+
+	/**
+	 * Collects the entries of a compound so they can be written out sorted, until there are too many bytes of them.
+	 */
+	private static final class CompoundSink extends OutputStream {
+		private final OutputStream parent;
+		private final List<Entry> entries = new ArrayList<>();
+		private ByteArrayOutputStream current;
+		private byte[] currentName;
+		private long buffered = 0;
+		private boolean spilled = false;
+
+		CompoundSink(OutputStream parent) {
+			this.parent = parent;
+		}
+
+		void begin(byte[] name) {
+			if(spilled) return;
+			currentName = name;
+			current = new ByteArrayOutputStream();
+		}
+
+		void end() {
+			if(spilled) return;
+			entries.add(new Entry(currentName, current.toByteArray()));
+			current = null;
+		}
+
+		void finish() throws IOException {
+			if(!spilled) writeSorted();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if(spilled) {
+				parent.write(b);
+				return;
+			}
+			current.write(b);
+			grow(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(spilled) {
+				parent.write(b, off, len);
+				return;
+			}
+			current.write(b, off, len);
+			grow(len);
+		}
+
+		/**
+		 * Once too much is buffered, write out what there is, and pass the rest of the compound straight through.
+		 */
+		private void grow(int length) throws IOException {
+			buffered += length;
+			if(buffered <= SORT_LIMIT) return;
+
+			writeSorted();
+			if(current != null) current.writeTo(parent);
+			current = null;
+			spilled = true;
+		}
+
+		private void writeSorted() throws IOException {
+			entries.sort(Comparator.comparing(Entry::name, Arrays::compareUnsigned));
+			for(Entry entry : entries) {
+				parent.write(entry.data());
+			}
+			entries.clear();
+		}
+
+		private record Entry(byte[] name, byte[] data) { }
+	}
+}
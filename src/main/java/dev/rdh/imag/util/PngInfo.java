@@ -0,0 +1,239 @@
+package dev.rdh.imag.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Everything the processors want to know about a PNG, found in one pass over its chunks.
+ * <p>The chunk list, header and animation flag are read up front. The decoded image and its pixel statistics are only worked out the first time they're asked for, then kept.</p>
+ * <p>An analysis describes one version of a file's contents, and is thrown away as soon as a processor changes them.</p>
+ */
+public final class PngInfo {
+	private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+
+	public static final int GRAYSCALE = 0;
+	public static final int RGB = 2;
+	public static final int PALETTE = 3;
+	public static final int GRAYSCALE_ALPHA = 4;
+	public static final int RGBA = 6;
+
+	/**
+	 * A chunk of the file.
+	 *
+	 * @param type the four letter type of the chunk, like {@code IDAT}.
+	 * @param offset where the chunk's data starts in the file.
+	 * @param length the length of the chunk's data.
+	 */
+	public record Chunk(String type, int offset, int length) { }
+
+	private final ByteBuffer data;
+	private final List<Chunk> chunks;
+	private final boolean valid;
+
+	private int width, height, bitDepth, colorType;
+	private boolean interlaced;
+
+	private BufferedImage image;
+	private Stats stats;
+
+	private PngInfo(ByteBuffer data) {
+		this.data = data;
+		List<Chunk> chunks = new ArrayList<>();
+		boolean valid;
+		try {
+			valid = read(chunks);
+		} catch(RuntimeException e) {
+			// whatever is wrong with the file, it just isn't a valid png
+			valid = false;
+		}
+		this.valid = valid;
+		this.chunks = Collections.unmodifiableList(chunks);
+	}
+
+	/**
+	 * Analyse a PNG.
+	 *
+	 * @param data the file, from its position to its limit. Must not be modified while the analysis is in use.
+	 * @return the analysis. If the data isn't a valid PNG, {@link #valid()} is {@code false}; this never throws on malformed data.
+	 */
+	public static PngInfo of(@NotNull ByteBuffer data) {
+		return new PngInfo(data.duplicate());
+	}
+
+	/**
+	 * Walk the chunks, checking their CRCs and that the file starts with IHDR, has image data and ends with IEND.
+	 */
+	private boolean read(List<Chunk> chunks) {
+		ByteBuffer in = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+		if(in.remaining() < 8 || in.getLong() != SIGNATURE) return false;
+
+		CRC32 crc = new CRC32();
+		boolean idat = false;
+		while(in.remaining() >= 12) {
+			int length = in.getInt();
+			// written this way round so a length near the maximum can't overflow
+			if(length < 0 || length > in.remaining() - 8) return false;
+
+			crc.reset();
+			crc.update(in.slice(in.position(), length + 4));
+			String type = StandardCharsets.ISO_8859_1.decode(in.slice(in.position(), 4)).toString();
+			in.position(in.position() + 4);
+			Chunk chunk = new Chunk(type, in.position(), length);
+			in.position(in.position() + length);
+			if((int) crc.getValue() != in.getInt()) return false;
+
+			if(chunks.isEmpty()) {
+				if(!type.equals("IHDR") || length != 13) return false;
+				ByteBuffer header = data.duplicate().position(chunk.offset()).slice();
+				width = header.getInt(0);
+				height = header.getInt(4);
+				bitDepth = header.get(8) & 0xFF;
+				colorType = header.get(9) & 0xFF;
+				interlaced = header.get(12) != 0;
+				if(width <= 0 || height <= 0) return false;
+			}
+
+			chunks.add(chunk);
+			idat |= type.equals("IDAT");
+			if(type.equals("IEND")) return idat;
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the data is a structurally valid PNG. If not, nothing else here is meaningful.
+	 */
+	public boolean valid() {
+		return valid;
+	}
+
+	/**
+	 * @return the chunks of the file, in order.
+	 */
+	public List<Chunk> chunks() {
+		return chunks;
+	}
+
+	/**
+	 * @param type the four letter type of a chunk.
+	 * @return whether the file has a chunk of that type.
+	 */
+	public boolean has(String type) {
+		for(Chunk chunk : chunks) {
+			if(chunk.type().equals(type)) return true;
+		}
+		return false;
+	}
+
+	public int width() {
+		return width;
+	}
+
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * @return the number of pixels in the image.
+	 */
+	public long pixels() {
+		return (long) width * height;
+	}
+
+	/**
+	 * @return the number of bits per sample, or per palette index.
+	 */
+	public int bitDepth() {
+		return bitDepth;
+	}
+
+	/**
+	 * @return the colour type from the header, one of {@link #GRAYSCALE}, {@link #RGB}, {@link #PALETTE}, {@link #GRAYSCALE_ALPHA} or {@link #RGBA}.
+	 */
+	public int colorType() {
+		return colorType;
+	}
+
+	public boolean interlaced() {
+		return interlaced;
+	}
+
+	/**
+	 * @return whether the file is an APNG.
+	 */
+	public boolean animated() {
+		return has("acTL");
+	}
+
+	/**
+	 * @return whether any pixel can be transparent, from an alpha channel or a {@code tRNS} chunk.
+	 */
+	public boolean hasAlpha() {
+		return colorType == GRAYSCALE_ALPHA || colorType == RGBA || has("tRNS");
+	}
+
+	/**
+	 * Decode the image, the first time this is called.
+	 * <p>For animations, this is only the default image.</p>
+	 *
+	 * @return the image, or {@code null} if it could not be decoded.
+	 * @throws IOException if the image could not be read.
+	 */
+	public synchronized @Nullable BufferedImage image() throws IOException {
+		if(image == null && valid) {
+			image = ImageIO.read(BufferUtils.inputStream(data.duplicate()));
+		}
+		return image;
+	}
+
+	/**
+	 * Statistics about the pixels of an image.
+	 *
+	 * @param opaque whether every pixel is fully opaque.
+	 * @param grayscale whether every pixel is a shade of grey.
+	 * @param colors the number of distinct colours, counting up to 257.
+	 */
+	public record Stats(boolean opaque, boolean grayscale, int colors) { }
+
+	/**
+	 * Work out statistics about the image's pixels, the first time this is called.
+	 *
+	 * @return the statistics, or {@code null} if the image could not be decoded.
+	 * @throws IOException if the image could not be read.
+	 */
+	public synchronized @Nullable Stats stats() throws IOException {
+		if(stats != null) return stats;
+
+		BufferedImage image = image();
+		if(image == null) return null;
+
+		boolean opaque = true, grayscale = true;
+		Set<Integer> colors = new HashSet<>();
+		int[] row = new int[image.getWidth()];
+		for(int y = 0; y < image.getHeight(); y++) {
+			image.getRGB(0, y, row.length, 1, row, 0, row.length);
+			for(int argb : row) {
+				opaque &= argb >>> 24 == 0xFF;
+				int r = argb >> 16 & 0xFF, g = argb >> 8 & 0xFF, b = argb & 0xFF;
+				grayscale &= r == g && g == b;
+				if(colors.size() <= 256) colors.add(argb);
+			}
+		}
+
+		stats = new Stats(opaque, grayscale, colors.size());
+		return stats;
+	}
+}
@@ -2,12 +2,18 @@ package dev.rdh.imag.util;
 
 import io.nayuki.png.PngImage;
 import io.nayuki.png.chunk.Actl;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 
 public class PngUtils {
 	private PngUtils() {}
 
+	private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+	private static final int IHDR = 0x49484452;
+
 	public static boolean isPNG(File f) {
 		if(f == null || !f.exists()) return false;
 
@@ -19,6 +25,33 @@ public class PngUtils {
 		}
 	}
 
+	public static boolean isPNG(byte[] data) {
+		try {
+			PngImage.read(new ByteArrayInputStream(data));
+			return true;
+		} catch (IllegalArgumentException | IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get the number of pixels in a PNG, reading only its header.
+	 *
+	 * @param f the file.
+	 * @return the width times the height of the image, or {@code -1} if it is not a valid PNG.
+	 */
+	public static long pixels(File f) {
+		try(DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+			// 8 byte signature, then the IHDR chunk: 4 byte length, 4 byte type, 4 byte width, 4 byte height
+			if(in.readLong() != SIGNATURE) return -1;
+			in.readInt();
+			if(in.readInt() != IHDR) return -1;
+			return (in.readInt() & 0xFFFFFFFFL) * (in.readInt() & 0xFFFFFFFFL);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
 	public static boolean isAnimated(File f) {
 		try {
 			PngImage image = PngImage.read(f);
@@ -27,4 +60,13 @@ public class PngUtils {
 			return false;
 		}
 	}
+
+	public static boolean isAnimated(byte[] data) {
+		try {
+			PngImage image = PngImage.read(new ByteArrayInputStream(data));
+			return PngImage.getChunk(Actl.class, image.afterIdats, image.afterIhdr).isPresent();
+		} catch (IllegalArgumentException | IOException e) {
+			return false;
+		}
+	}
 }
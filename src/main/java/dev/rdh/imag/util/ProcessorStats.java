@@ -0,0 +1,121 @@
+package dev.rdh.imag.util;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+
+import static dev.rdh.imag.util.StringUtils.*;
+
+/**
+ * A thread-safe registry of how much each processor helps, split up by file type and size.
+ * <p>In adaptive mode, it is also used to skip processors that almost never make a certain kind of file any smaller. Skipped processors still run on a small sample of files, so they can come back if they start helping.</p>
+ */
+public class ProcessorStats {
+	/**
+	 * How many times a processor has to run on a kind of file before it can be skipped.
+	 */
+	static final int MIN_RUNS = 32;
+
+	/**
+	 * The fraction of runs a processor has to make a file smaller in to not be skipped.
+	 */
+	static final double MIN_HIT_RATE = 0.02;
+
+	/**
+	 * One in this many files still gets a skipped processor, to keep its stats up to date.
+	 */
+	static final int SAMPLE_RATE = 20;
+
+	private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Sort files into classes by extension and size, like {@code png <4K}.
+	 *
+	 * @param name the name of the file.
+	 * @param size the size of the file, in bytes.
+	 * @return the class of the file.
+	 */
+	public static String fileClass(@NotNull String name, long size) {
+		String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+		String bucket;
+		if(size < 4 << 10) bucket = "<4K";
+		else if(size < 64 << 10) bucket = "4K-64K";
+		else if(size < 1 << 20) bucket = "64K-1M";
+		else bucket = ">1M";
+		return extension + ' ' + bucket;
+	}
+
+	/**
+	 * Record a run of a processor.
+	 *
+	 * @param processor the name of the processor.
+	 * @param fileClass the class of the file, from {@link #fileClass(String, long)}.
+	 * @param pre the size of the file before the processor ran.
+	 * @param post the size of the file after the processor ran.
+	 * @param nanos how long the processor took.
+	 */
+	public void record(String processor, String fileClass, long pre, long post, long nanos) {
+		Entry entry = entry(processor, fileClass);
+		entry.runs.increment();
+		if(post < pre) {
+			entry.hits.increment();
+			entry.saved.add(pre - post);
+		}
+		entry.nanos.add(nanos);
+	}
+
+	/**
+	 * Decide whether to skip a processor, based on how it has done on the same class of file so far.
+	 * <p>A skip is counted towards the stats when this returns {@code true}.</p>
+	 *
+	 * @param processor the name of the processor.
+	 * @param fileClass the class of the file, from {@link #fileClass(String, long)}.
+	 * @return whether the processor should be skipped.
+	 */
+	public boolean shouldSkip(String processor, String fileClass) {
+		Entry entry = entry(processor, fileClass);
+		long runs = entry.runs.sum();
+		if(runs < MIN_RUNS || entry.hits.sum() >= runs * MIN_HIT_RATE) return false;
+
+		entry.skips.increment();
+		return entry.skips.sum() % SAMPLE_RATE != 0;
+	}
+
+	/**
+	 * @return a table of the stats for every processor and class of file.
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-12s %-12s %8s %8s %9s %16s %12s%n", "Processor", "Files", "Runs", "Skipped", "Hit rate", "Saved", "Time"));
+
+		entries.entrySet().stream()
+				.sorted(Map.Entry.<Key, Entry>comparingByKey(Comparator.comparing(Key::processor).thenComparing(Key::fileClass)))
+				.forEach(e -> {
+					Entry entry = e.getValue();
+					long runs = entry.runs.sum();
+					double hitRate = runs == 0 ? 0 : entry.hits.sum() / (double) runs * 100;
+					sb.append(String.format("%-12s %-12s %8s %8s %9s %16s %12s%n",
+							e.getKey().processor(), e.getKey().fileClass(),
+							format(runs), format(entry.skips.sum()), format(hitRate) + "%",
+							plural(entry.saved.sum(), "byte"), timeFromSecs(entry.nanos.sum() / 1e9)));
+				});
+		return sb.toString();
+	}
+
+	private Entry entry(String processor, String fileClass) {
+		return entries.computeIfAbsent(new Key(processor, fileClass), k -> new Entry());
+	}
+
+	private record Key(String processor, String fileClass) { }
+
+	private static final class Entry {
+		final LongAdder runs = new LongAdder();
+		final LongAdder hits = new LongAdder();
+		final LongAdder skips = new LongAdder();
+		final LongAdder saved = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+	}
+}
@@ -0,0 +1,178 @@
+package dev.rdh.imag.util;
+
+import dev.rdh.imag.Main;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A persistent cache of optimization results, keyed by the SHA-256 hash of a file's contents.
+ * <p>The cache directory holds an append-only {@code index} of {@code <input> <output> <chain>} lines, and the optimized files themselves under {@code objects/}, named by their hash.</p>
+ * <p>Every entry is tied to the processor chain that produced it, so disabling a processor won't reuse results it was part of.</p>
+ * <p>The stored files are limited to a total size, and the least recently used ones are deleted once it is reached.
+ * Their hashes stay in the index, so files that were already optimized are still skipped, but copies of them can no longer be restored.</p>
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class ResultCache {
+	private final File objects;
+	private final File index;
+
+	/**
+	 * Maps {@code chain + ' ' + input hash} to the hash of the optimized output.
+	 */
+	private final Map<String, String> results = new ConcurrentHashMap<>();
+
+	/**
+	 * Contains {@code chain + ' ' + output hash} for every output that chain has produced.
+	 */
+	private final Set<String> optimized = ConcurrentHashMap.newKeySet();
+
+	private final Object lock = new Object();
+
+	/**
+	 * The most bytes of stored files to keep.
+	 */
+	private final long maxSize;
+
+	/**
+	 * The total size of the stored files.
+	 */
+	private final AtomicLong size = new AtomicLong();
+
+	private ResultCache(File dir, long maxSize) {
+		this.objects = new File(dir, "objects");
+		this.index = new File(dir, "index");
+		this.maxSize = maxSize;
+		objects.mkdirs();
+	}
+
+	/**
+	 * Load the cache stored in a directory, creating it if it does not exist.
+	 *
+	 * @param dir the directory the cache is stored in.
+	 * @param maxSize the most bytes of optimized files to keep. 0 keeps none, only their hashes.
+	 * @return the cache.
+	 */
+	public static ResultCache load(@NotNull File dir, long maxSize) {
+		ResultCache cache = new ResultCache(dir, maxSize);
+		for(File object : cache.objects()) {
+			cache.size.addAndGet(object.length());
+		}
+		cache.trim();
+		if(!cache.index.exists()) return cache;
+
+		try {
+			for(String line : Files.readAllLines(cache.index.toPath(), StandardCharsets.UTF_8)) {
+				String[] parts = line.split(" ");
+				if(parts.length != 3) continue;
+				cache.put(parts[0], parts[1], parts[2]);
+			}
+		} catch(IOException e) {
+			Main.LOGGER.error("Could not read cache index, starting with an empty cache", e);
+		}
+		return cache;
+	}
+
+	/**
+	 * Check if a file is the output of a previous run of a processor chain, meaning there is nothing left to do.
+	 *
+	 * @param hash the hash of the file's contents.
+	 * @param chain the processor chain that would be run on the file.
+	 * @return whether the file has already been optimized by that chain.
+	 */
+	public boolean isOptimized(@NotNull String hash, @NotNull String chain) {
+		return optimized.contains(chain + ' ' + hash);
+	}
+
+	/**
+	 * Get the result of a previous run of a processor chain on a file with the same contents.
+	 *
+	 * @param hash the hash of the file's contents.
+	 * @param chain the processor chain that would be run on the file.
+	 * @return the stored result, or {@code null} if there is none.
+	 */
+	public @Nullable File lookup(@NotNull String hash, @NotNull String chain) {
+		String output = results.get(chain + ' ' + hash);
+		if(output == null) return null;
+
+		File result = new File(objects, output);
+		if(!result.isFile()) return null;
+		// the modification time says when it was last used, so the ones that keep being restored are kept
+		result.setLastModified(System.currentTimeMillis());
+		return result;
+	}
+
+	/**
+	 * Record the result of running a processor chain on a file.
+	 *
+	 * @param input the hash of the file's contents before processing.
+	 * @param result the processed file.
+	 * @param chain the processor chain that was run on the file.
+	 * @throws IOException if the result could not be stored.
+	 */
+	public void store(@NotNull String input, @NotNull File result, @NotNull String chain) throws IOException {
+		String output = FileUtils.hash(result);
+		if(results.containsKey(chain + ' ' + input) && optimized.contains(chain + ' ' + output)) return;
+
+		if(!input.equals(output) && result.length() <= maxSize) {
+			File object = new File(objects, output);
+			if(!object.exists()) {
+				File temp = new File(objects, output + ".tmp" + Thread.currentThread().getId());
+				Files.copy(result.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				Files.move(temp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				if(size.addAndGet(object.length()) > maxSize) trim();
+			}
+		}
+
+		put(input, output, chain);
+
+		synchronized(lock) {
+			try(BufferedWriter writer = Files.newBufferedWriter(index.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+				writer.write(input + ' ' + output + ' ' + chain);
+				writer.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Delete the least recently used stored files until they fit in {@link #maxSize}.
+	 */
+	private void trim() {
+		synchronized(lock) {
+			if(size.get() <= maxSize) return;
+
+			File[] files = objects();
+			Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+			long total = 0;
+			for(File file : files) total += file.length();
+			for(int i = 0; i < files.length && total > maxSize; i++) {
+				long length = files[i].length();
+				if(files[i].delete()) total -= length;
+			}
+			size.set(total);
+		}
+	}
+
+	private File[] objects() {
+		File[] files = objects.listFiles(file -> file.isFile() && !file.getName().contains(".tmp"));
+		return files != null ? files : new File[0];
+	}
+
+	private void put(String input, String output, String chain) {
+		results.put(chain + ' ' + input, output);
+		optimized.add(chain + ' ' + output);
+	}
+}